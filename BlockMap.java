@@ -0,0 +1,100 @@
+import java.util.*;
+
+// Maps disk block numbers to cache pages with open addressing on plain
+// int arrays, so a lookup costs a hash and a probe or two whatever the
+// cache size, without boxing an Integer per block.  The table is kept at
+// most half full; removals shift the following entries of the probe run
+// back instead of leaving tombstones.
+public class BlockMap {
+    public static final int NONE = -1;   // get( ) of an absent block
+
+    private int keys[];
+    private int values[];
+    private int mask;
+    private int shift;  // keeps the top bits of the hash, the well mixed ones
+    private int size;
+
+    // A map able to hold capacity blocks without growing.
+    public BlockMap( int capacity ) {
+	int slots = 2;
+	while ( slots < 2 * capacity )
+	    slots <<= 1;
+	allocate( slots );
+    }
+
+    private void allocate( int slots ) {
+	keys = new int[ slots ];
+	values = new int[ slots ];
+	mask = slots - 1;
+	shift = Integer.numberOfLeadingZeros( mask );
+	Arrays.fill( keys, NONE );
+	size = 0;
+    }
+
+    private int slot( int blockId ) {
+	return ( blockId * 0x9E3779B9 ) >>> shift;
+    }
+
+    public int get( int blockId ) {
+	for ( int i = slot( blockId ); keys[i] != NONE; i = ( i + 1 ) & mask ) {
+	    if ( keys[i] == blockId )
+		return values[i];
+	}
+	return NONE;
+    }
+
+    public void put( int blockId, int page ) {
+	int i = slot( blockId );
+	for ( ; keys[i] != NONE; i = ( i + 1 ) & mask ) {
+	    if ( keys[i] == blockId ) {
+		values[i] = page;
+		return;
+	    }
+	}
+	keys[i] = blockId;
+	values[i] = page;
+	if ( ++size * 2 > keys.length )
+	    grow( );
+    }
+
+    public void remove( int blockId ) {
+	if ( blockId == NONE )
+	    return;
+	int i = slot( blockId );
+	while ( keys[i] != blockId ) {
+	    if ( keys[i] == NONE )
+		return;
+	    i = ( i + 1 ) & mask;
+	}
+	// pull back any later entry of the run that probed past slot i
+	for ( int j = ( i + 1 ) & mask; keys[j] != NONE; j = ( j + 1 ) & mask ) {
+	    int home = slot( keys[j] );
+	    if ( ( ( j - home ) & mask ) >= ( ( j - i ) & mask ) ) {
+		keys[i] = keys[j];
+		values[i] = values[j];
+		i = j;
+	    }
+	}
+	keys[i] = NONE;
+	size--;
+    }
+
+    public void clear( ) {
+	Arrays.fill( keys, NONE );
+	size = 0;
+    }
+
+    public int size( ) {
+	return size;
+    }
+
+    private void grow( ) {
+	int oldKeys[] = keys;
+	int oldValues[] = values;
+	allocate( oldKeys.length * 2 );
+	for ( int i = 0; i < oldKeys.length; i++ ) {
+	    if ( oldKeys[i] != NONE )
+		put( oldKeys[i], oldValues[i] );
+	}
+    }
+}
@@ -0,0 +1,1203 @@
+import java.util.*;
+
+// A write-back block cache shared by every thread.  The pages are split
+// into stripes, each with its own lock, block map and replacement policy,
+// and a block always lives in the stripe its number hashes to.  No lock is
+// held across disk I/O: a page being filled is marked loading, a thread
+// after the same block waits for that one read instead of issuing its
+// own, and hits on other pages go ahead in the meantime.  An optional
+// flusher thread writes dirty pages back in the background, so that
+// eviction mostly finds clean victims.  The page contents live in a
+// PageStore, on the Java heap or off it.  File system metadata is kept
+// resident two ways: a block can be pinned, which keeps it from being
+// evicted while it is cached, and a share of every stripe can be reserved
+// for superblock, inode and indirect blocks, which data blocks then
+// cannot evict.
+public class Cache {
+    // one stripe per MIN_STRIPE_PAGES pages, at most MAX_STRIPES of them
+    private static final int MIN_STRIPE_PAGES = 64;
+    private static final int MAX_STRIPES = 16;
+    // write-back writes up to MAX_GAP clean cached blocks along to join
+    // two runs of dirty ones, far cheaper than seeking to the second run
+    private static final int MAX_GAP = 8;
+
+    private int blockSize;            // 512 bytes
+    private Stripe stripes[];
+    private Object syncLock = new Object( ); // one write-back pass at a time
+    private Flusher flusher;          // null unless startFlusher was called
+    private long dirtyEvictions;      // victims written back in the foreground
+    private long writeBackWait;       // ns foreground threads spent on that
+    private long flushed;             // pages the flusher wrote back
+    private Prefetcher prefetcher;    // started by the first prefetch
+    private long prefetched;          // pages read ahead by prefetch
+    private long syncs;               // sync and flush calls
+    private long syncTime;            // ns spent in them
+    private long gapFilled;           // clean blocks written to join runs
+    private long bypassRead;          // blocks readDirect took from disk
+    private long bypassWritten;       // and writeDirect wrote to it
+    private Histogram missLatency[];  // of cread misses, by block class
+
+    private static final int INVALID = -1; // frame of a page holding nothing
+
+    // A share of the pages and everything that indexes them, guarded by
+    // the stripe's own monitor, which is also where threads wait for a
+    // page's I/O to finish.  What is known about each page is kept in
+    // arrays indexed by page rather than in an object per page.
+    private class Stripe {
+	int size;                     // pages in the stripe
+	PageStore pages;              // the cached blocks themselves
+	int frame[];                  // disk block held in each page
+	boolean dirty[];
+	long dirtySince[];            // ms when it last went from clean to dirty
+	boolean loading[];            // being read in, contents not valid yet
+	boolean readAhead[];          // prefetched and not asked for yet
+	byte blockClass[];            // IoStats.SUPERBLOCK, INODE, ... DATA
+	BlockMap pageOf;              // block number -> page holding it
+	BlockMap writing;             // evicted block -> write-backs in flight
+	int freePages[];              // pages holding no block, a stack
+	int freeCount;
+	boolean busy[];               // pages with I/O in flight, no victims
+	int busyCount;
+	BlockMap pins;                // block number -> times pinned
+	boolean pinned[];             // holds a pinned block, no victim
+	int pinnedCount;
+	boolean held[];               // busy or pinned
+	int heldCount;
+	boolean metadata[];           // holds a block of a class but DATA
+	int metadataCount;
+	int metadataReserve;          // pages data cannot take from metadata
+	boolean guarded[];            // held, or metadata within the reserve
+	int guardedCount;
+	int dirtyCount;
+	int readAheadCount;           // pages with readAhead set
+	CachePolicy policy;           // picks the page to evict
+	long hits[] = new long[ IoStats.CLASSES ];  // all by block class
+	long misses[] = new long[ IoStats.CLASSES ];
+	long evictions[] = new long[ IoStats.CLASSES ];
+	long writeBacks[] = new long[ IoStats.CLASSES ];
+
+	Stripe( int pageCount, String policyName, String storeName ) {
+	    size = pageCount;
+	    pages = PageStore.create( storeName, pageCount, blockSize );
+	    frame = new int[ pageCount ];
+	    Arrays.fill( frame, INVALID );
+	    dirty = new boolean[ pageCount ];
+	    dirtySince = new long[ pageCount ];
+	    loading = new boolean[ pageCount ];
+	    readAhead = new boolean[ pageCount ];
+	    blockClass = new byte[ pageCount ];
+	    Arrays.fill( blockClass, ( byte )IoStats.DATA );
+	    pageOf = new BlockMap( pageCount );
+	    writing = new BlockMap( 16 );
+	    freePages = new int[ pageCount ];
+	    busy = new boolean[ pageCount ];
+	    pins = new BlockMap( 16 );
+	    pinned = new boolean[ pageCount ];
+	    held = new boolean[ pageCount ];
+	    metadata = new boolean[ pageCount ];
+	    guarded = new boolean[ pageCount ];
+	    policy = CachePolicy.create( policyName, pageCount );
+	    freeAll( );
+	}
+
+	// Every page becomes free, the lowest numbered taken first.  No page
+	// may be busy; the pins stay, to take hold again once their blocks
+	// are back.
+	void freeAll( ) {
+	    pageOf.clear( );
+	    Arrays.fill( frame, INVALID );
+	    Arrays.fill( readAhead, false );
+	    readAheadCount = 0;
+	    Arrays.fill( pinned, false );
+	    pinnedCount = 0;
+	    Arrays.fill( held, false );
+	    heldCount = 0;
+	    Arrays.fill( metadata, false );
+	    metadataCount = 0;
+	    Arrays.fill( guarded, false );
+	    guardedCount = 0;
+	    freeCount = size;
+	    for ( int i = 0; i < freeCount; i++ )
+		freePages[i] = freeCount - 1 - i;
+	}
+
+	int findPage( int blockId ) {
+	    return pageOf.get( blockId );
+	}
+
+	// Sleeps until blockId is neither being read in nor, if it is not
+	// cached, still on its way to disk, so that it can be looked up.
+	void waitSettled( int blockId ) {
+	    while ( true ) {
+		int page = findPage( blockId );
+		if ( page != -1 ? loading[page] == false
+		     : writing.get( blockId ) == BlockMap.NONE )
+		    return;
+		waitIo( );
+	    }
+	}
+
+	// Sleeps until no write-back of an evicted block, or of a
+	// writeDirect( ), is still on its way to disk.
+	synchronized void waitWritten( ) {
+	    while ( writing.size( ) > 0 )
+		waitIo( );
+	}
+
+	void waitIo( ) {
+	    try {
+		wait( );
+	    } catch ( InterruptedException e ) {
+	    }
+	}
+
+	// Makes a page hold blockId, which is not cached, and returns it, or
+	// -1 if every page has I/O in flight or is pinned.  The page is a
+	// free one if there is one, otherwise the policy's victim, whose
+	// contents are moved to victimBlocks and victimData if dirty: the
+	// caller writes them back and then calls written( ).  A data block
+	// only takes a metadata page once metadata holds more pages than its
+	// reserve.
+	int claim( int blockId, int blockClass, Vector<Integer> victimBlocks,
+		   Vector<byte[]> victimData ) {
+	    int page;
+	    blockClass = classify( blockId, blockClass );
+	    if ( freeCount > 0 )
+		page = freePages[ --freeCount ];
+	    else if ( heldCount == size )
+		return -1;
+	    else if ( blockClass == IoStats.DATA
+		      && metadataCount <= metadataReserve
+		      && guardedCount < size )
+		page = policy.victim( blockId, guarded );
+	    else
+		page = policy.victim( blockId, held );
+	    if ( frame[page] != INVALID )
+		evictions[ this.blockClass[page] ]++;
+	    if ( frame[page] != INVALID && dirty[page] ) {
+		writeBacks[ this.blockClass[page] ]++;
+		victimBlocks.add( frame[page] );
+		victimData.add( pages.take( page ) );
+		int inFlight = writing.get( frame[page] );
+		writing.put( frame[page],
+			     ( inFlight == BlockMap.NONE ) ? 1 : inFlight + 1 );
+	    }
+	    pageOf.remove( frame[page] );
+	    frame[page] = blockId;
+	    this.blockClass[page] = ( byte )blockClass;
+	    setDirty( page, false );
+	    setReadAhead( page, false );
+	    setMetadata( page, blockClass != IoStats.DATA );
+	    setPinned( page, pins.get( blockId ) != BlockMap.NONE );
+	    pageOf.put( blockId, page );
+	    policy.insert( page, blockId );
+	    return page;
+	}
+
+	// Counts a hit on page, which holds blockClass if that is not
+	// IoStats.UNCLASSIFIED.
+	void hit( int page, int blockClass ) {
+	    if ( blockClass != IoStats.UNCLASSIFIED ) {
+		this.blockClass[page] = ( byte )blockClass;
+		setMetadata( page, blockClass != IoStats.DATA );
+	    }
+	    hits[ this.blockClass[page] ]++;
+	    setReadAhead( page, false );
+	    policy.hit( page );
+	}
+
+	synchronized void written( int blockId ) {
+	    int inFlight = writing.get( blockId );
+	    if ( inFlight > 1 )
+		writing.put( blockId, inFlight - 1 );
+	    else
+		writing.remove( blockId );
+	    notifyAll( );
+	}
+
+	void setDirty( int page, boolean isDirty ) {
+	    if ( dirty[page] == isDirty )
+		return;
+	    dirty[page] = isDirty;
+	    if ( isDirty ) {
+		dirtySince[page] = System.currentTimeMillis( );
+		dirtyCount++;
+	    } else
+		dirtyCount--;
+	}
+
+	void setReadAhead( int page, boolean isReadAhead ) {
+	    if ( readAhead[page] != isReadAhead )
+		readAheadCount += isReadAhead ? 1 : -1;
+	    readAhead[page] = isReadAhead;
+	}
+
+	void setBusy( int page, boolean isBusy ) {
+	    if ( busy[page] != isBusy )
+		busyCount += isBusy ? 1 : -1;
+	    busy[page] = isBusy;
+	    guard( page );
+	    if ( isBusy == false )
+		notifyAll( );
+	}
+
+	// A pin takes hold only while pinned pages are under half of the
+	// stripe, so that pins cannot leave it without a victim.
+	void setPinned( int page, boolean isPinned ) {
+	    if ( pinned[page] == isPinned
+		 || isPinned && pinnedCount * 2 >= size )
+		return;
+	    pinnedCount += isPinned ? 1 : -1;
+	    pinned[page] = isPinned;
+	    guard( page );
+	    if ( isPinned == false )
+		notifyAll( );
+	}
+
+	void setMetadata( int page, boolean isMetadata ) {
+	    if ( metadata[page] != isMetadata )
+		metadataCount += isMetadata ? 1 : -1;
+	    metadata[page] = isMetadata;
+	    guard( page );
+	}
+
+	// Brings held[page] and guarded[page] up to date.
+	void guard( int page ) {
+	    boolean isHeld = busy[page] || pinned[page];
+	    if ( held[page] != isHeld )
+		heldCount += isHeld ? 1 : -1;
+	    held[page] = isHeld;
+	    boolean isGuarded = isHeld || metadata[page];
+	    if ( guarded[page] != isGuarded )
+		guardedCount += isGuarded ? 1 : -1;
+	    guarded[page] = isGuarded;
+	}
+
+	void startLoad( int page ) {
+	    loading[page] = true;
+	    setBusy( page, true );
+	}
+
+	void finishLoad( int page ) {
+	    loading[page] = false;
+	    setBusy( page, false );
+	}
+    }
+
+    public Cache( int blockSize, int cacheBlocks ) {
+	this( blockSize, cacheBlocks, "clock" );
+    }
+
+    // policy names the replacement policy, see CachePolicy.create.
+    public Cache( int blockSize, int cacheBlocks, String policy ) {
+	this( blockSize, cacheBlocks, policy, "heap" );
+    }
+
+    // store names where the pages are kept, see PageStore.create.
+    public Cache( int blockSize, int cacheBlocks, String policy,
+		  String store ) {
+	this.blockSize = blockSize;
+	int count = Math.min( MAX_STRIPES,
+			      Math.max( 1, cacheBlocks / MIN_STRIPE_PAGES ) );
+	missLatency = new Histogram[ IoStats.CLASSES ];
+	for ( int i = 0; i < IoStats.CLASSES; i++ )
+	    missLatency[i] = new Histogram( );
+	stripes = new Stripe[ count ];
+	for ( int i = 0; i < count; i++ )
+	    stripes[i] = new Stripe( cacheBlocks / count
+				     + ( ( i < cacheBlocks % count ) ? 1 : 0 ),
+				     policy, store );
+    }
+
+    // Reserves percent of the pages of every stripe for metadata blocks:
+    // as long as metadata holds no more pages than that, a data block
+    // never evicts one.
+    public void reserveMetadata( int percent ) {
+	percent = Math.max( 0, Math.min( 100, percent ) );
+	for ( int s = 0; s < stripes.length; s++ ) {
+	    synchronized ( stripes[s] ) {
+		stripes[s].metadataReserve = stripes[s].size * percent / 100;
+	    }
+	}
+    }
+
+    // Keeps blockId cached once it is read or written, until unpinned as
+    // many times as it was pinned.  Pins take hold only while pinned pages
+    // fill less than half of a stripe, and a flush still drops the block,
+    // which is kept again after it is next read in.
+    public boolean pin( int blockId ) {
+	if ( blockId < 0 ) {
+	    SysLib.cerr( "threadOS: a wrong blockId for cpin\n" );
+	    return false;
+	}
+	Stripe stripe = stripeOf( blockId );
+	synchronized ( stripe ) {
+	    int count = stripe.pins.get( blockId );
+	    stripe.pins.put( blockId, ( count == BlockMap.NONE ) ? 1
+			     : count + 1 );
+	    int page = stripe.findPage( blockId );
+	    if ( page != -1 )
+		stripe.setPinned( page, true );
+	}
+	return true;
+    }
+
+    public boolean unpin( int blockId ) {
+	Stripe stripe = stripeOf( blockId );
+	synchronized ( stripe ) {
+	    int count = stripe.pins.get( blockId );
+	    if ( count == BlockMap.NONE ) {
+		SysLib.cerr( "threadOS: cunpin of a block not pinned\n" );
+		return false;
+	    }
+	    if ( count > 1 ) {
+		stripe.pins.put( blockId, count - 1 );
+		return true;
+	    }
+	    stripe.pins.remove( blockId );
+	    int page = stripe.findPage( blockId );
+	    if ( page != -1 )
+		stripe.setPinned( page, false );
+	}
+	return true;
+    }
+
+    // The class of a block asked for as blockClass: block 0 is the
+    // superblock, and any other block not given a class is taken for data.
+    private static int classify( int blockId, int blockClass ) {
+	if ( blockClass != IoStats.UNCLASSIFIED )
+	    return blockClass;
+	return ( blockId == 0 ) ? IoStats.SUPERBLOCK : IoStats.DATA;
+    }
+
+    private synchronized void synced( long start ) {
+	syncs++;
+	syncTime += System.nanoTime( ) - start;
+    }
+
+    private synchronized void missed( int blockClass, long start ) {
+	missLatency[blockClass].add( ( System.nanoTime( ) - start ) / 1000 );
+    }
+
+    // The stripe comes from a hash of its own: BlockMap picks slots from
+    // the top bits of blockId * 0x9E3779B9, and a stripe chosen from the
+    // same product would only get blocks whose slots bunch together.
+    private Stripe stripeOf( int blockId ) {
+	int hash = blockId * 0x85EBCA6B;
+	hash ^= hash >>> 13;
+	hash *= 0xC2B2AE35;
+	hash ^= hash >>> 16;
+	return stripes[ ( hash & Integer.MAX_VALUE ) % stripes.length ];
+    }
+
+    // Writes the victims of claim( ) back, in one scatter/gather rawwrite,
+    // on the time of the thread that evicted them.
+    private void writeBack( Vector<Integer> victimBlocks,
+			    Vector<byte[]> victimData ) {
+	int n = victimBlocks.size( );
+	if ( n == 0 )
+	    return;
+	long start = System.nanoTime( );
+	writeVictims( victimBlocks, victimData );
+	synchronized ( this ) {
+	    dirtyEvictions += n;
+	    writeBackWait += System.nanoTime( ) - start;
+	}
+    }
+
+    private void writeVictims( Vector<Integer> victimBlocks,
+			       Vector<byte[]> victimData ) {
+	int n = victimBlocks.size( );
+	if ( n == 0 )
+	    return;
+	int blocks[] = new int[n];
+	byte buffers[][] = new byte[n][];
+	for ( int i = 0; i < n; i++ ) {
+	    blocks[i] = victimBlocks.get( i );
+	    buffers[i] = victimData.get( i );
+	}
+	SysLib.rawwrite( blocks, buffers, new int[n] );
+	for ( int i = 0; i < n; i++ )
+	    stripeOf( blocks[i] ).written( blocks[i] );
+    }
+
+    private void writeBackAll( ) {
+	writeBackDirty( Long.MAX_VALUE );
+    }
+
+    // Writes every page dirty since dirtiedBy (ms) or earlier back with a
+    // single scatter/gather rawwrite, and returns how many there were.
+    // The blocks are sorted, and a gap of up to MAX_GAP blocks between two
+    // of them is written too if every block in it is cached and idle, so
+    // that the disk streams one run instead of seeking twice.  The pages
+    // stay cached and readable, but cannot be evicted until their write is
+    // done.  The caller holds syncLock.
+    private int writeBackDirty( long dirtiedBy ) {
+	Vector<Integer> dirtyBlocks = new Vector<Integer>( );
+	Vector<byte[]> dirtyData = new Vector<byte[]>( );
+	Vector<Integer> dirtyPages = new Vector<Integer>( );
+	for ( int s = 0; s < stripes.length; s++ ) {
+	    Stripe stripe = stripes[s];
+	    synchronized ( stripe ) {
+		for ( int i = 0; i < stripe.size
+			  && stripe.dirtyCount > 0; i++ ) {
+		    if ( stripe.frame[i] != INVALID && stripe.dirty[i]
+			 && stripe.dirtySince[i] <= dirtiedBy ) {
+			dirtyBlocks.add( stripe.frame[i] );
+			dirtyData.add( stripe.pages.copy( i ) );
+			dirtyPages.add( i );
+			stripe.writeBacks[ stripe.blockClass[i] ]++;
+			stripe.setDirty( i, false );
+			stripe.setBusy( i, true );
+		    }
+		}
+	    }
+	}
+	int n = dirtyBlocks.size( );
+	if ( n == 0 )
+	    return 0;
+
+	// ascending block order, with the gaps filled where possible
+	final int dirty[] = new int[n];
+	Integer order[] = new Integer[n];
+	for ( int i = 0; i < n; i++ ) {
+	    dirty[i] = dirtyBlocks.get( i );
+	    order[i] = i;
+	}
+	Arrays.sort( order, new Comparator<Integer>( ) {
+		public int compare( Integer a, Integer b ) {
+		    return Integer.compare( dirty[a], dirty[b] );
+		}
+	    } );
+	Vector<Integer> runBlocks = new Vector<Integer>( );
+	Vector<byte[]> runData = new Vector<byte[]>( );
+	Vector<Integer> runPages = new Vector<Integer>( );
+	int filled = 0;
+	for ( int i = 0; i < n; i++ ) {
+	    int j = order[i];
+	    if ( i > 0 )
+		filled += fillGap( dirty[ order[ i - 1 ] ], dirty[j],
+				   runBlocks, runData, runPages );
+	    runBlocks.add( dirty[j] );
+	    runData.add( dirtyData.get( j ) );
+	    runPages.add( dirtyPages.get( j ) );
+	}
+
+	int count = runBlocks.size( );
+	int blocks[] = new int[count];
+	byte buffers[][] = new byte[count][];
+	for ( int i = 0; i < count; i++ ) {
+	    blocks[i] = runBlocks.get( i );
+	    buffers[i] = runData.get( i );
+	}
+	SysLib.rawwrite( blocks, buffers, new int[count] );
+	for ( int i = 0; i < count; i++ ) {
+	    Stripe stripe = stripeOf( blocks[i] );
+	    synchronized ( stripe ) {
+		stripe.setBusy( runPages.get( i ), false );
+	    }
+	}
+	synchronized ( this ) {
+	    gapFilled += filled;
+	}
+	return n;
+    }
+
+    // Appends the blocks between from and to, exclusive, to a write-back,
+    // copying and marking busy their pages, if there are at most MAX_GAP
+    // of them and every one is cached with no I/O in flight.  Returns how
+    // many were added.
+    private int fillGap( int from, int to, Vector<Integer> blocks,
+			 Vector<byte[]> data, Vector<Integer> pages ) {
+	if ( to - from - 1 > MAX_GAP )
+	    return 0;
+	int start = blocks.size( );
+	for ( int blockId = from + 1; blockId < to; blockId++ ) {
+	    Stripe stripe = stripeOf( blockId );
+	    synchronized ( stripe ) {
+		int page = stripe.findPage( blockId );
+		if ( page != -1 && stripe.busy[page] == false ) {
+		    blocks.add( blockId );
+		    data.add( stripe.pages.copy( page ) );
+		    pages.add( page );
+		    stripe.setBusy( page, true );
+		    continue;
+		}
+	    }
+	    // a hole in the gap: give back the pages taken for it
+	    while ( blocks.size( ) > start ) {
+		int last = blocks.size( ) - 1;
+		Stripe taken = stripeOf( blocks.get( last ) );
+		synchronized ( taken ) {
+		    taken.setBusy( pages.get( last ), false );
+		}
+		blocks.remove( last );
+		data.remove( last );
+		pages.remove( last );
+	    }
+	    return 0;
+	}
+	return blocks.size( ) - start;
+    }
+
+    public boolean read( int blockId, byte buffer[] ) {
+	return read( blockId, buffer, IoStats.UNCLASSIFIED );
+    }
+
+    // blockClass is the kind of block, one of IoStats.SUPERBLOCK, INODE,
+    // INDIRECT, DATA and BITMAP, which the statistics are broken down by.
+    public boolean read( int blockId, byte buffer[], int blockClass ) {
+	if ( blockId < 0 ) {
+	    SysLib.cerr( "threadOS: a wrong blockId for cread\n" );
+	    return false;
+	}
+	read( blockId, buffer, 0, blockClass );
+	return true;
+    }
+
+    private void read( int blockId, byte buffer[], int offset,
+		       int blockClass ) {
+	Stripe stripe = stripeOf( blockId );
+	Vector<Integer> victimBlocks = new Vector<Integer>( );
+	Vector<byte[]> victimData = new Vector<byte[]>( );
+	int page;
+	synchronized ( stripe ) {
+	    while ( true ) {
+		// wait out a read of the same block already under way
+		stripe.waitSettled( blockId );
+		page = stripe.findPage( blockId );
+		if ( page != -1 ) {
+		    // cache hit!!
+		    stripe.hit( page, blockClass );
+		    stripe.pages.get( page, 0, buffer, offset, blockSize );
+		    return;
+		}
+		// page miss!!
+		// find an invalid page, or a victim if all pages are full
+		if ( ( page = stripe.claim( blockId, blockClass, victimBlocks,
+					    victimData ) ) != -1 )
+		    break;
+		stripe.waitIo( ); // every page has I/O in flight
+	    }
+	    blockClass = stripe.blockClass[page];
+	    stripe.misses[blockClass]++;
+	    stripe.startLoad( page );
+	}
+
+	// write back a dirty copy, then read the requested block from disk
+	// straight into the caller's buffer, and cache it from there
+	long start = System.nanoTime( );
+	writeBack( victimBlocks, victimData );
+	SysLib.rawread( new int[] { blockId }, new byte[][] { buffer },
+			new int[] { offset } );
+
+	synchronized ( stripe ) {
+	    stripe.pages.put( page, 0, buffer, offset, blockSize );
+	    stripe.finishLoad( page );
+	}
+	missed( blockClass, start );
+    }
+
+    // Reads blocks[i] into buffers[i] at offsets[i].  Hits are served from
+    // the cache; the misses are claimed and loaded in rounds, each round
+    // with one scatter/gather rawwrite of the dirty pages it evicts and
+    // one scatter/gather rawread of the blocks it brings in.  Blocks that
+    // are already being read in or written back are picked up afterwards.
+    public boolean read( int blocks[], byte buffers[][], int offsets[] ) {
+	for ( int i = 0; i < blocks.length; i++ ) {
+	    if ( blocks[i] < 0 ) {
+		SysLib.cerr( "threadOS: a wrong blockId for cread\n" );
+		return false;
+	    }
+	}
+
+	int next = 0;
+	while ( next < blocks.length ) {
+	    Vector<Integer> loads = new Vector<Integer>( ); // index in blocks
+	    Vector<Integer> loadPages = new Vector<Integer>( );
+	    Vector<Integer> deferred = new Vector<Integer>( );
+	    Vector<Integer> victimBlocks = new Vector<Integer>( );
+	    Vector<byte[]> victimData = new Vector<byte[]>( );
+	    for ( ; next < blocks.length; next++ ) {
+		Stripe stripe = stripeOf( blocks[next] );
+		synchronized ( stripe ) {
+		    int page = stripe.findPage( blocks[next] );
+		    if ( page != -1 && stripe.loading[page] == false ) {
+			stripe.hit( page, IoStats.UNCLASSIFIED );
+			stripe.pages.get( page, 0, buffers[next], offsets[next],
+					  blockSize );
+			continue;
+		    }
+		    if ( page != -1 || stripe.writing.get( blocks[next] )
+			 != BlockMap.NONE ) {
+			deferred.add( next ); // its I/O is already under way
+			continue;
+		    }
+		    page = stripe.claim( blocks[next], IoStats.UNCLASSIFIED,
+					 victimBlocks, victimData );
+		    if ( page == -1 ) {
+			// never wait while holding pages still to be loaded
+			if ( loads.size( ) > 0 )
+			    break;
+			deferred.add( next );
+			continue;
+		    }
+		    stripe.misses[ stripe.blockClass[page] ]++;
+		    stripe.startLoad( page );
+		    loads.add( next );
+		    loadPages.add( page );
+		}
+	    }
+
+	    // write back the dirty copies, then load the missing blocks
+	    // straight into the caller's buffers, and cache them from there
+	    long start = System.nanoTime( );
+	    writeBack( victimBlocks, victimData );
+	    int n = loads.size( );
+	    if ( n > 0 ) {
+		int loadBlocks[] = new int[n];
+		byte loadBuffers[][] = new byte[n][];
+		int loadOffsets[] = new int[n];
+		for ( int i = 0; i < n; i++ ) {
+		    int b = loads.get( i );
+		    loadBlocks[i] = blocks[b];
+		    loadBuffers[i] = buffers[b];
+		    loadOffsets[i] = offsets[b];
+		}
+		SysLib.rawread( loadBlocks, loadBuffers, loadOffsets );
+	    }
+	    for ( int i = 0; i < n; i++ ) {
+		int b = loads.get( i );
+		int page = loadPages.get( i );
+		Stripe stripe = stripeOf( blocks[b] );
+		int blockClass;
+		synchronized ( stripe ) {
+		    stripe.pages.put( page, 0, buffers[b], offsets[b],
+				      blockSize );
+		    blockClass = stripe.blockClass[page];
+		    stripe.finishLoad( page );
+		}
+		missed( blockClass, start );
+	    }
+	    for ( int i = 0; i < deferred.size( ); i++ ) {
+		int b = deferred.get( i );
+		read( blocks[b], buffers[b], offsets[b], IoStats.UNCLASSIFIED );
+	    }
+	}
+	return true;
+    }
+
+    // Starts reading the blocks not cached yet in the background, so that
+    // a cread of them soon after finds them loaded, or waits for the read
+    // already under way.  Pages read ahead and not asked for yet never
+    // take more than half of a stripe, so read-ahead cannot flush the
+    // cache; prefetch stops at the first block that would exceed that and
+    // returns how many of the blocks it took care of, for the caller to
+    // offer the rest again later.
+    public int prefetch( int blocks[] ) {
+	Prefetch job = new Prefetch( );
+	int i;
+	for ( i = 0; i < blocks.length; i++ ) {
+	    if ( blocks[i] < 0 )
+		continue;
+	    Stripe stripe = stripeOf( blocks[i] );
+	    synchronized ( stripe ) {
+		if ( stripe.findPage( blocks[i] ) != -1
+		     || stripe.writing.get( blocks[i] ) != BlockMap.NONE )
+		    continue;
+		if ( stripe.readAheadCount * 2 >= stripe.size )
+		    break;
+		int page = stripe.claim( blocks[i], IoStats.UNCLASSIFIED,
+					 job.victimBlocks, job.victimData );
+		if ( page == -1 )
+		    break;
+		stripe.startLoad( page );
+		stripe.setReadAhead( page, true );
+		job.blocks.add( blocks[i] );
+		job.pages.add( page );
+	    }
+	}
+	if ( job.blocks.size( ) == 0 )
+	    return i;
+	synchronized ( this ) {
+	    prefetched += job.blocks.size( );
+	    if ( prefetcher == null ) {
+		prefetcher = new Prefetcher( );
+		prefetcher.start( );
+	    }
+	}
+	prefetcher.add( job );
+	return i;
+    }
+
+    // Pages claimed by prefetch, for the prefetcher to load.
+    private class Prefetch {
+	Vector<Integer> blocks = new Vector<Integer>( );
+	Vector<Integer> pages = new Vector<Integer>( );
+	Vector<Integer> victimBlocks = new Vector<Integer>( );
+	Vector<byte[]> victimData = new Vector<byte[]>( );
+    }
+
+    // Loads prefetched pages one job at a time, each with one
+    // scatter/gather rawread into a buffer of its own after writing back
+    // the victims it evicted.
+    class Prefetcher extends Thread {
+	private Vector<Prefetch> queue = new Vector<Prefetch>( );
+
+	Prefetcher( ) {
+	    setDaemon( true );
+	}
+
+	synchronized void add( Prefetch job ) {
+	    queue.add( job );
+	    notify( );
+	}
+
+	private synchronized Prefetch take( ) {
+	    while ( queue.isEmpty( ) ) {
+		try {
+		    wait( );
+		} catch ( InterruptedException e ) {
+		}
+	    }
+	    return queue.remove( 0 );
+	}
+
+	public void run( ) {
+	    while ( true ) {
+		Prefetch job = take( );
+		writeVictims( job.victimBlocks, job.victimData );
+		int n = job.blocks.size( );
+		int blocks[] = new int[n];
+		byte data[] = new byte[ n * blockSize ];
+		byte buffers[][] = new byte[n][];
+		int offsets[] = new int[n];
+		for ( int i = 0; i < n; i++ ) {
+		    blocks[i] = job.blocks.get( i );
+		    buffers[i] = data;
+		    offsets[i] = i * blockSize;
+		}
+		SysLib.rawread( blocks, buffers, offsets );
+		for ( int i = 0; i < n; i++ ) {
+		    Stripe stripe = stripeOf( blocks[i] );
+		    int page = job.pages.get( i );
+		    synchronized ( stripe ) {
+			stripe.pages.put( page, 0, data, i * blockSize,
+					  blockSize );
+			stripe.finishLoad( page );
+		    }
+		}
+	    }
+	}
+    }
+
+    // Checks blocks for a direct transfer, complaining if one is wrong.
+    private static boolean validBlocks( int blocks[], String call ) {
+	for ( int i = 0; i < blocks.length; i++ ) {
+	    if ( blocks[i] < 0 ) {
+		SysLib.cerr( "threadOS: a wrong blockId for " + call + "\n" );
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    // Reads blocks[i] into buffers[i] at offsets[i] without caching them,
+    // for a large transfer that would only push the working set out.  A
+    // block already cached is copied from its page, which is left where
+    // the policy had it; the others are read with one scatter/gather
+    // rawread and not kept.
+    public boolean readDirect( int blocks[], byte buffers[][],
+			       int offsets[] ) {
+	if ( validBlocks( blocks, "direct read" ) == false )
+	    return false;
+	Vector<Integer> misses = new Vector<Integer>( ); // index in blocks
+	for ( int i = 0; i < blocks.length; i++ ) {
+	    Stripe stripe = stripeOf( blocks[i] );
+	    synchronized ( stripe ) {
+		// a block on its way to or from disk is waited for
+		stripe.waitSettled( blocks[i] );
+		int page = stripe.findPage( blocks[i] );
+		if ( page != -1 )
+		    stripe.pages.get( page, 0, buffers[i], offsets[i],
+				      blockSize );
+		else
+		    misses.add( i );
+	    }
+	}
+	int n = misses.size( );
+	if ( n == 0 )
+	    return true;
+	int missBlocks[] = new int[n];
+	byte missBuffers[][] = new byte[n][];
+	int missOffsets[] = new int[n];
+	for ( int i = 0; i < n; i++ ) {
+	    int b = misses.get( i );
+	    missBlocks[i] = blocks[b];
+	    missBuffers[i] = buffers[b];
+	    missOffsets[i] = offsets[b];
+	}
+	SysLib.rawread( missBlocks, missBuffers, missOffsets );
+	synchronized ( this ) {
+	    bypassRead += n;
+	}
+	return true;
+    }
+
+    // Writes blocks[i] from buffers[i] at offsets[i] to disk with one
+    // scatter/gather rawwrite, without caching them.  A block that is
+    // cached has its page brought up to date and made clean, and stays
+    // busy like a page being written back until the write is done; one
+    // that is not is marked as on its way to disk meanwhile, so that no
+    // cread can read the old contents in before the write lands.
+    public boolean writeDirect( int blocks[], byte buffers[][],
+				int offsets[] ) {
+	if ( validBlocks( blocks, "direct write" ) == false )
+	    return false;
+	int n = blocks.length;
+	int pages[] = new int[n];
+	for ( int i = 0; i < n; i++ ) {
+	    Stripe stripe = stripeOf( blocks[i] );
+	    synchronized ( stripe ) {
+		while ( true ) {
+		    stripe.waitSettled( blocks[i] );
+		    pages[i] = stripe.findPage( blocks[i] );
+		    // an older copy being written back must land first
+		    if ( pages[i] == -1 || stripe.busy[ pages[i] ] == false )
+			break;
+		    stripe.waitIo( );
+		}
+		if ( pages[i] != -1 ) {
+		    stripe.pages.put( pages[i], 0, buffers[i], offsets[i],
+				      blockSize );
+		    stripe.setDirty( pages[i], false );
+		    stripe.setBusy( pages[i], true );
+		} else {
+		    int inFlight = stripe.writing.get( blocks[i] );
+		    stripe.writing.put( blocks[i], ( inFlight == BlockMap.NONE )
+					? 1 : inFlight + 1 );
+		}
+	    }
+	}
+	SysLib.rawwrite( blocks, buffers, offsets );
+	for ( int i = 0; i < n; i++ ) {
+	    Stripe stripe = stripeOf( blocks[i] );
+	    if ( pages[i] == -1 ) {
+		stripe.written( blocks[i] );
+		continue;
+	    }
+	    synchronized ( stripe ) {
+		stripe.setBusy( pages[i], false );
+	    }
+	}
+	synchronized ( this ) {
+	    bypassWritten += n;
+	}
+	return true;
+    }
+
+    public boolean write( int blockId, byte buffer[] ) {
+	return write( blockId, buffer, IoStats.UNCLASSIFIED );
+    }
+
+    public boolean write( int blockId, byte buffer[], int blockClass ) {
+	return write( blockId, 0, buffer, 0, blockSize, blockClass, false );
+    }
+
+    // Writes length bytes of buffer from bufferOffset into blockId at
+    // offset, leaving the rest of the block as it was.  If the block is
+    // not cached and fill is set, it is read in first; without fill its
+    // other bytes start out zero, for a block whose old contents are of no
+    // use, such as one just allocated.  A write of the whole block never
+    // reads it.
+    public boolean write( int blockId, int offset, byte buffer[],
+			  int bufferOffset, int length, int blockClass,
+			  boolean fill ) {
+	if ( blockId < 0 ) {
+	    SysLib.cerr( "threadOS: a wrong blockId for cwrite\n" );
+	    return false;
+	}
+	if ( offset < 0 || length < 0 || offset + length > blockSize ) {
+	    SysLib.cerr( "threadOS: a wrong offset or length for cwrite\n" );
+	    return false;
+	}
+	if ( length == blockSize )
+	    fill = false;
+
+	Stripe stripe = stripeOf( blockId );
+	Vector<Integer> victimBlocks = new Vector<Integer>( );
+	Vector<byte[]> victimData = new Vector<byte[]>( );
+	int page;
+	synchronized ( stripe ) {
+	    while ( true ) {
+		stripe.waitSettled( blockId );
+		page = stripe.findPage( blockId );
+		if ( page != -1 ) {
+		    // cache hit
+		    stripe.hit( page, blockClass );
+		    stripe.pages.put( page, offset, buffer, bufferOffset, length );
+		    dirtied( stripe, page );
+		    return true;
+		}
+		// page miss
+		// find an invalid page, or a victim if all pages are full
+		if ( ( page = stripe.claim( blockId, blockClass, victimBlocks,
+					    victimData ) ) != -1 )
+		    break;
+		stripe.waitIo( );
+	    }
+	    blockClass = stripe.blockClass[page];
+	    stripe.misses[blockClass]++;
+	    if ( fill == false ) {
+		// cache it but not write through.
+		if ( length < blockSize )
+		    stripe.pages.zero( page );
+		stripe.pages.put( page, offset, buffer, bufferOffset, length );
+		dirtied( stripe, page );
+	    } else
+		stripe.startLoad( page );
+	}
+	// write back a dirty copy, then read what the write leaves in place
+	long start = System.nanoTime( );
+	writeBack( victimBlocks, victimData );
+	if ( fill ) {
+	    byte data[] = new byte[ blockSize ];
+	    SysLib.rawread( blockId, data );
+	    synchronized ( stripe ) {
+		stripe.pages.put( page, 0, data, 0, blockSize );
+		stripe.pages.put( page, offset, buffer, bufferOffset, length );
+		dirtied( stripe, page );
+		stripe.finishLoad( page );
+	    }
+	    missed( blockClass, start );
+	}
+	return true;
+    }
+
+    // Marks page dirty, waking the flusher once too much of its stripe is.
+    // The caller holds the stripe's lock.
+    private void dirtied( Stripe stripe, int page ) {
+	stripe.setDirty( page, true );
+	if ( flusher != null && stripe.dirtyCount * 100
+	     >= flusher.dirtyRatio * stripe.size )
+	    flusher.wake( );
+    }
+
+    // Writes dirty pages back in the background: every interval ms those
+    // dirty for longer than maxAge ms, and all of them as soon as more
+    // than dirtyRatio percent of the pages of a stripe are dirty.
+    class Flusher extends Thread {
+	int dirtyRatio;
+	int maxAge;
+	int interval;
+	boolean woken = false;
+
+	Flusher( int dirtyRatio, int maxAge, int interval ) {
+	    this.dirtyRatio = dirtyRatio;
+	    this.maxAge = maxAge;
+	    this.interval = interval;
+	    setDaemon( true );
+	}
+
+	synchronized void wake( ) {
+	    woken = true;
+	    notify( );
+	}
+
+	// Sleeps for an interval, or less if woken; true if it was woken.
+	private synchronized boolean pause( ) {
+	    if ( woken == false ) {
+		try {
+		    wait( interval );
+		} catch ( InterruptedException e ) {
+		}
+	    }
+	    boolean wasWoken = woken;
+	    woken = false;
+	    return wasWoken;
+	}
+
+	public void run( ) {
+	    while ( true ) {
+		long dirtiedBy = pause( ) ? Long.MAX_VALUE
+		    : System.currentTimeMillis( ) - maxAge;
+		int n;
+		synchronized ( syncLock ) {
+		    n = writeBackDirty( dirtiedBy );
+		}
+		synchronized ( Cache.this ) {
+		    flushed += n;
+		}
+	    }
+	}
+    }
+
+    // Starts the background flusher, see Flusher.
+    public void startFlusher( int dirtyRatio, int maxAge, int interval ) {
+	flusher = new Flusher( dirtyRatio, maxAge, Math.max( 1, interval ) );
+	flusher.start( );
+    }
+
+    public void stats( IoStats stats ) {
+	Histogram all = new Histogram( );
+	synchronized ( this ) {
+	    stats.dirtyEvictions = dirtyEvictions;
+	    stats.writeBackWait = writeBackWait / 1000000;
+	    stats.flushed = flushed;
+	    stats.prefetched = prefetched;
+	    stats.syncs = syncs;
+	    stats.syncTime = syncTime / 1000000;
+	    stats.gapFilled = gapFilled;
+	    stats.bypassRead = bypassRead;
+	    stats.bypassWritten = bypassWritten;
+	    for ( int c = 0; c < IoStats.CLASSES; c++ ) {
+		stats.classMissLatency[c] = missLatency[c].mean( );
+		stats.classMissLatencyP99[c] = missLatency[c].percentile( 99 );
+		all.add( missLatency[c] );
+	    }
+	}
+	stats.missLatency = all.mean( );
+	stats.missLatencyP99 = all.percentile( 99 );
+	stats.cachePolicy = stripes[0].policy.getName( );
+	stats.cacheStore = stripes[0].pages.getName( );
+	stats.cacheBlocks = 0;
+	stats.pinnedBlocks = 0;
+	stats.metadataBlocks = 0;
+	stats.metadataReserve = 0;
+	for ( int s = 0; s < stripes.length; s++ ) {
+	    synchronized ( stripes[s] ) {
+		stats.cacheBlocks += stripes[s].size;
+		stats.pinnedBlocks += stripes[s].pinnedCount;
+		stats.metadataBlocks += stripes[s].metadataCount;
+		stats.metadataReserve += stripes[s].metadataReserve;
+	    }
+	}
+	Arrays.fill( stats.classHits, 0 );
+	Arrays.fill( stats.classMisses, 0 );
+	Arrays.fill( stats.classEvictions, 0 );
+	Arrays.fill( stats.classWriteBacks, 0 );
+	for ( int s = 0; s < stripes.length; s++ ) {
+	    synchronized ( stripes[s] ) {
+		for ( int c = 0; c < IoStats.CLASSES; c++ ) {
+		    stats.classHits[c] += stripes[s].hits[c];
+		    stats.classMisses[c] += stripes[s].misses[c];
+		    stats.classEvictions[c] += stripes[s].evictions[c];
+		    stats.classWriteBacks[c] += stripes[s].writeBacks[c];
+		}
+	    }
+	}
+	stats.cacheHits = sum( stats.classHits );
+	stats.cacheMisses = sum( stats.classMisses );
+	stats.cacheEvictions = sum( stats.classEvictions );
+	stats.cacheWriteBacks = sum( stats.classWriteBacks );
+    }
+
+    private static long sum( long counts[] ) {
+	long total = 0;
+	for ( int i = 0; i < counts.length; i++ )
+	    total += counts[i];
+	return total;
+    }
+
+    // Latencies in microseconds, counted exactly below 16 us and in eight
+    // buckets per power of two above, so a percentile read off it is at
+    // most 1/8 too high.
+    private static class Histogram {
+	private static final int BUCKETS = 16 + 8 * 60;
+	private long counts[] = new long[ BUCKETS ];
+	private long count;
+	private long sum;
+
+	private static int bucket( long us ) {
+	    if ( us < 16 )
+		return ( int )Math.max( 0, us );
+	    int octave = 63 - Long.numberOfLeadingZeros( us );
+	    return 16 + ( octave - 4 ) * 8
+		+ ( int )( ( us >>> ( octave - 3 ) ) & 7 );
+	}
+
+	// The largest latency falling into bucket b.
+	private static long top( int b ) {
+	    if ( b < 16 )
+		return b;
+	    int shift = ( b - 16 ) / 8 + 1;
+	    return ( ( 8L + ( b - 16 ) % 8 + 1 ) << shift ) - 1;
+	}
+
+	void add( long us ) {
+	    counts[ bucket( us ) ]++;
+	    count++;
+	    sum += us;
+	}
+
+	void add( Histogram other ) {
+	    for ( int b = 0; b < BUCKETS; b++ )
+		counts[b] += other.counts[b];
+	    count += other.count;
+	    sum += other.sum;
+	}
+
+	long mean( ) {
+	    return ( count > 0 ) ? sum / count : 0;
+	}
+
+	// The latency percent of the samples do not exceed, 0 if none.
+	long percentile( int percent ) {
+	    long rank = ( count * percent + 99 ) / 100;
+	    long seen = 0;
+	    for ( int b = 0; b < BUCKETS && count > 0; b++ ) {
+		seen += counts[b];
+		if ( seen >= rank )
+		    return top( b );
+	    }
+	    return 0;
+	}
+    }
+
+    private boolean isClean( Stripe stripe ) {
+	return stripe.dirtyCount == 0;
+    }
+
+    // Waits for the rawwrites other threads issued outside the stripe
+    // locks, which writeBackAll( ) does not see, so that the disk SYNC
+    // comes after them.
+    private void waitWritten( ) {
+	for ( int s = 0; s < stripes.length; s++ )
+	    stripes[s].waitWritten( );
+    }
+
+    public void sync( ) {
+	long start = System.nanoTime( );
+	synchronized ( syncLock ) {
+	    writeBackAll( );
+	}
+	waitWritten( );
+	SysLib.sync( );
+	synced( start );
+    }
+
+    public void flush( ) {
+	long start = System.nanoTime( );
+	synchronized ( syncLock ) {
+	    writeBackAll( );
+	    for ( int s = 0; s < stripes.length; ) {
+		Stripe stripe = stripes[s];
+		synchronized ( stripe ) {
+		    while ( stripe.busyCount > 0 )
+			stripe.waitIo( );
+		    if ( isClean( stripe ) ) {
+			stripe.freeAll( );
+			stripe.policy.reset( );
+			s++;
+			continue;
+		    }
+		}
+		// written to since writeBackAll, so write it back again
+		writeBackAll( );
+	    }
+	}
+	waitWritten( );
+	SysLib.sync( );
+	synced( start );
+    }
+}
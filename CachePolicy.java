@@ -0,0 +1,295 @@
+import java.util.*;
+
+// Decides which cache page gives up its block when the cache is full.
+// Cache tells the policy about every hit and every block it loads into a
+// page, and asks it for a victim only once no page is free.  The policy
+// then forgets the victim's page; Cache writes it back if it is dirty.
+public abstract class CachePolicy {
+    private String name;
+
+    // blockId was found cached in page.
+    public abstract void hit( int page );
+
+    // page now holds blockId, loaded after a miss.
+    public abstract void insert( int page, int blockId );
+
+    // The page to evict to make room for blockId, never one whose skip[]
+    // is set.  skip may be null.
+    public abstract int victim( int blockId, boolean skip[] );
+
+    // The cache was flushed: every page is free again.
+    public abstract void reset( );
+
+    public String getName( ) {
+	return name;
+    }
+
+    // Instantiate a policy by name for a cache of pages pages: clock
+    // (second chance), arc or 2q.
+    public static CachePolicy create( String name, int pages ) {
+	CachePolicy policy;
+	if ( name.equals( "arc" ) )
+	    policy = new Arc( pages );
+	else if ( name.equals( "2q" ) )
+	    policy = new TwoQ( pages );
+	else {
+	    if ( !name.equals( "clock" ) )
+		SysLib.cerr( "threadOS: unknown cache policy " + name
+			     + ", using clock\n" );
+	    policy = new Clock( pages );
+	    name = "clock";
+	}
+	policy.name = name;
+	return policy;
+    }
+
+    // Second chance: sweep the pages in a circle, clearing reference bits,
+    // and take the first page found unreferenced.
+    private static class Clock extends CachePolicy {
+	private boolean reference[];
+	private int hand;
+
+	Clock( int pages ) {
+	    reference = new boolean[ pages ];
+	    hand = pages - 1;
+	}
+
+	public void hit( int page ) {
+	    reference[page] = true;
+	}
+
+	public void insert( int page, int blockId ) {
+	    reference[page] = true;
+	}
+
+	public int victim( int blockId, boolean skip[] ) {
+	    while ( true ) {
+		hand = ( hand + 1 ) % reference.length;
+		if ( skip != null && skip[hand] )
+		    continue;
+		if ( reference[hand] == false )
+		    return hand;
+		reference[hand] = false;
+	    }
+	}
+
+	public void reset( ) {
+	    Arrays.fill( reference, false );
+	}
+    }
+
+    // Adaptive Replacement Cache (Megiddo and Modha): recently used pages
+    // in t1, pages used more than once in t2, and the blocks recently
+    // evicted from each in the ghost lists b1 and b2.  A miss on a ghost
+    // moves the target size p of t1 toward the list that would have kept
+    // the block, so a scan through t1 cannot flush the hot pages of t2.
+    private static class Arc extends CachePolicy {
+	private int capacity;
+	private int p = 0;             // target size of t1
+	private int blockOf[];         // block held by each page
+	private PageList t1, t2;
+	private LinkedHashSet<Integer> b1, b2;
+
+	Arc( int pages ) {
+	    capacity = pages;
+	    blockOf = new int[ pages ];
+	    t1 = new PageList( pages );
+	    t2 = new PageList( pages );
+	    b1 = new LinkedHashSet<Integer>( );
+	    b2 = new LinkedHashSet<Integer>( );
+	}
+
+	public void hit( int page ) {
+	    t1.remove( page );
+	    t2.remove( page );
+	    t2.addFirst( page );
+	}
+
+	public void insert( int page, int blockId ) {
+	    blockOf[page] = blockId;
+	    if ( b1.remove( blockId ) || b2.remove( blockId ) )
+		t2.addFirst( page );
+	    else
+		t1.addFirst( page );
+	    // keep |t1| + |b1| <= c and the whole directory <= 2c
+	    while ( t1.size( ) + b1.size( ) > capacity && b1.size( ) > 0 )
+		removeOldest( b1 );
+	    while ( t1.size( ) + t2.size( ) + b1.size( ) + b2.size( )
+		    > 2 * capacity && b2.size( ) > 0 )
+		removeOldest( b2 );
+	}
+
+	public int victim( int blockId, boolean skip[] ) {
+	    boolean inB2 = b2.contains( blockId );
+	    if ( b1.contains( blockId ) )
+		p = Math.min( capacity,
+			      p + Math.max( b2.size( ) / b1.size( ), 1 ) );
+	    else if ( inB2 )
+		p = Math.max( 0, p - Math.max( b1.size( ) / b2.size( ), 1 ) );
+
+	    int page = -1;
+	    if ( t1.size( ) > 0
+		 && ( t1.size( ) > p || ( inB2 && t1.size( ) == p ) ) )
+		page = t1.oldest( skip );
+	    if ( page != -1 ) {
+		t1.remove( page );
+		b1.add( blockOf[page] );
+		return page;
+	    }
+	    page = t2.oldest( skip );
+	    if ( page == -1 ) {
+		// t2 is empty or skipped entirely, so t1 has to give
+		page = t1.oldest( skip );
+		t1.remove( page );
+		b1.add( blockOf[page] );
+		return page;
+	    }
+	    t2.remove( page );
+	    b2.add( blockOf[page] );
+	    return page;
+	}
+
+	public void reset( ) {
+	    p = 0;
+	    t1.clear( );
+	    t2.clear( );
+	    b1.clear( );
+	    b2.clear( );
+	}
+    }
+
+    // 2Q (Johnson and Shasha): a block seen once waits in the FIFO a1in;
+    // only a block asked for again after falling out of a1in, while it is
+    // still remembered in the ghost FIFO a1out, joins the LRU list am.
+    // One pass over a large file therefore churns a1in alone.
+    private static class TwoQ extends CachePolicy {
+	private int kin;               // a1in is trimmed down to kin pages
+	private int kout;              // a1out remembers kout blocks
+	private int blockOf[];
+	private PageList a1in, am;
+	private LinkedHashSet<Integer> a1out;
+
+	TwoQ( int pages ) {
+	    kin = Math.max( 1, pages / 4 );
+	    kout = Math.max( 1, pages / 2 );
+	    blockOf = new int[ pages ];
+	    a1in = new PageList( pages );
+	    am = new PageList( pages );
+	    a1out = new LinkedHashSet<Integer>( );
+	}
+
+	public void hit( int page ) {
+	    if ( am.contains( page ) ) {
+		am.remove( page );
+		am.addFirst( page );
+	    }
+	    // a hit in a1in leaves it in place: it is not yet proven hot
+	}
+
+	public void insert( int page, int blockId ) {
+	    blockOf[page] = blockId;
+	    if ( a1out.remove( blockId ) )
+		am.addFirst( page );
+	    else
+		a1in.addFirst( page );
+	}
+
+	public int victim( int blockId, boolean skip[] ) {
+	    int page = -1;
+	    if ( a1in.size( ) > kin || am.size( ) == 0 )
+		page = a1in.oldest( skip );
+	    if ( page != -1 ) {
+		a1in.remove( page );
+		a1out.add( blockOf[page] );
+		while ( a1out.size( ) > kout )
+		    removeOldest( a1out );
+		return page;
+	    }
+	    page = am.oldest( skip );
+	    if ( page == -1 ) {
+		page = a1in.oldest( skip );
+		a1in.remove( page );
+		return page;
+	    }
+	    am.remove( page );
+	    return page;
+	}
+
+	public void reset( ) {
+	    a1in.clear( );
+	    am.clear( );
+	    a1out.clear( );
+	}
+    }
+
+    private static void removeOldest( LinkedHashSet<Integer> ghosts ) {
+	Iterator<Integer> oldest = ghosts.iterator( );
+	oldest.next( );
+	oldest.remove( );
+    }
+
+    // An LRU ordered list of cache pages, linked through arrays indexed by
+    // page so that every operation but oldest( skip ) is O(1).
+    private static class PageList {
+	private static final int NIL = -1;
+	private int next[], prev[];
+	private boolean member[];
+	private int head = NIL, tail = NIL;   // newest and oldest
+	private int size = 0;
+
+	PageList( int pages ) {
+	    next = new int[ pages ];
+	    prev = new int[ pages ];
+	    member = new boolean[ pages ];
+	}
+
+	int size( ) {
+	    return size;
+	}
+
+	boolean contains( int page ) {
+	    return member[page];
+	}
+
+	void addFirst( int page ) {
+	    prev[page] = NIL;
+	    next[page] = head;
+	    if ( head != NIL )
+		prev[head] = page;
+	    head = page;
+	    if ( tail == NIL )
+		tail = page;
+	    member[page] = true;
+	    size++;
+	}
+
+	void remove( int page ) {
+	    if ( member[page] == false )
+		return;
+	    if ( prev[page] != NIL )
+		next[ prev[page] ] = next[page];
+	    else
+		head = next[page];
+	    if ( next[page] != NIL )
+		prev[ next[page] ] = prev[page];
+	    else
+		tail = prev[page];
+	    member[page] = false;
+	    size--;
+	}
+
+	// The least recently used page not skipped, or -1.
+	int oldest( boolean skip[] ) {
+	    int page = tail;
+	    while ( page != NIL && skip != null && skip[page] )
+		page = prev[page];
+	    return page;
+	}
+
+	void clear( ) {
+	    head = tail = NIL;
+	    size = 0;
+	    Arrays.fill( member, false );
+	}
+    }
+}
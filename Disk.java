@@ -1,41 +1,145 @@
 import java.io.*;
+import java.util.*;
 
 public class Disk extends Thread {
     public static final int blockSize = 512;
-    private final int trackSize = 10;
-    private final int transferTime = 20;
-    private final int delayPerTrack = 1;
+    // Latency model, see setLatency
+    private int trackSize = 10;
+    private int transferTime = 20;
+    private int delayPerTrack = 1;
+    private int streamTime = 2;
     private int diskSize;
 
+    protected final String image;   // the file backing this disk
     private byte data[];
 
-    private int command;
-    private final int IDLE = 0;
-    private final int READ = 1;
-    private final int WRITE = 2;
-    private final int SYNC = 3;
-    private boolean readyBuffer;
+    protected static final int IDLE = 0;
+    protected static final int READ = 1;
+    protected static final int WRITE = 2;
+    protected static final int SYNC = 3;
+
+    // Up to QUEUE_DEPTH requests may be outstanding at once.  read, write
+    // and sync hand back the queued Request, or null while the queue is
+    // full.  The issuer parks on that Request alone until the disk
+    // interrupt completes it.
+    public static final int QUEUE_DEPTH = 8;
+
+    public static class Request {
+	int command;
+	int blockId;       // lowest block, where the scheduler sees it
+	int blocks[];      // a READ or WRITE moves blocks[i] to or from
+	byte buffers[][];  // buffers[i] at offsets[i]
+	int offsets[];
+	int bypassed;      // times a younger request was served first
+	private boolean done = false;
+	private boolean failed = false;
+	private Request whole;  // the request this one is part of, if any
+	private int parts;      // parts of this request still outstanding
+
+	Request( int command, int blocks[], byte buffers[][], int offsets[] ) {
+	    this.command = command;
+	    this.blocks = blocks;
+	    this.buffers = buffers;
+	    this.offsets = offsets;
+	    blockId = 0;
+	    if ( blocks != null ) {
+		blockId = blocks[0];
+		for ( int i = 1; i < blocks.length; i++ )
+		    blockId = Math.min( blockId, blocks[i] );
+	    }
+	}
+
+	// Called from the disk interrupt once the command has been served.
+	// The last part of a split request to complete completes the whole.
+	public void complete( ) {
+	    synchronized ( this ) {
+		done = true;
+		buffers = null;
+		notifyAll( );
+	    }
+	    if ( whole != null )
+		whole.partDone( failed );
+	}
+
+	private void partDone( boolean partFailed ) {
+	    synchronized ( this ) {
+		failed |= partFailed;
+		if ( --parts > 0 )
+		    return;
+	    }
+	    complete( );
+	}
+
+	// Makes this request complete once parts requests naming it as
+	// whole have completed.
+	synchronized void split( int parts ) {
+	    this.parts = parts;
+	}
+
+	// Sleeps until the request completes; false if it was rejected.
+	public synchronized boolean await( ) {
+	    while ( done == false ) {
+		try {
+		    wait( );
+		} catch ( InterruptedException e ) {
+		}
+	    }
+	    return failed == false;
+	}
+    }
+    private Vector<Request> pending; // in arrival order
+
+    // Queued requests are served in the order chosen by scheduler, but
+    // never past a SYNC issued after them, and the oldest request is
+    // served once MAX_BYPASS younger ones have gone ahead of it.
+    public static final int MAX_BYPASS = 32;
+    private DiskScheduler scheduler;
+    private int outstanding;         // requests queued or being served
+    private int rejected;            // requests turned away, queue full
+    private long commands;           // served so far, see stats
+    private long blocksRead;
+    private long blocksWritten;
+    private long seekTime;
 
-    private byte[] buffer;
     private int currentBlockId;
-    private int targetBlockId;
+
+    // The most blocks a heap image can hold; larger disks need MappedDisk,
+    // which addresses its file with long offsets.
+    public static final int MAX_HEAP_BLOCKS = Integer.MAX_VALUE / blockSize;
 
     public Disk( int totalBlocks ) {
+	this( totalBlocks, "DISK" );
+    }
+
+    public Disk( int totalBlocks, String image ) {
+	this( totalBlocks, image, true );
+    }
+
+    // Backends that keep the image somewhere other than the heap pass
+    // loadImage = false and override readBlock, writeBlock and syncImage.
+    protected Disk( int totalBlocks, String image, boolean loadImage ) {
 	diskSize = ( totalBlocks > 0 ) ? totalBlocks : 1;
-	data = new byte[ diskSize * blockSize ];
-	command = IDLE;
-	readyBuffer = false;
-	buffer = null;
+	this.image = image;
+	outstanding = 0;
+	pending = new Vector<Request>( );
+	scheduler = DiskScheduler.create( "fcfs" );
 	currentBlockId = 0;
-	targetBlockId = 0;
+	if ( loadImage == false )
+	    return;
+	if ( diskSize > MAX_HEAP_BLOCKS ) {
+	    SysLib.cerr( "threadOS: " + diskSize + " blocks do not fit in the"
+			 + " heap, using " + MAX_HEAP_BLOCKS + "\n" );
+	    diskSize = MAX_HEAP_BLOCKS;
+	}
+	data = new byte[ diskSize * blockSize ];
 	try {
-	    FileInputStream ifstream = new FileInputStream( "DISK" );
+	    FileInputStream ifstream = new FileInputStream( image );
 	    int readableSize = ( ifstream.available( ) < data.length ) ?
 		ifstream.available( ) : data.length; 
 	    ifstream.read( data, 0, readableSize );
 	    ifstream.close( );
 	} catch ( FileNotFoundException e ) {
-	    SysLib.cerr( "threadOS: DISK created\n" );
+	    SysLib.cerr( "threadOS: " + image + " created\n" );
 	} catch ( IOException e ) {
 	    SysLib.cerr( e.toString( ) + "\n" );
 	}
@@ -46,125 +150,270 @@ public class Disk extends Thread {
 		return diskSize;
 	}
 
-    public synchronized boolean read( int blockId, byte buffer[] ) {
+    // Every command costs transferTime ms, plus delayPerTrack ms for each
+    // track of trackSize blocks the head crosses and streamTime ms for each
+    // block after the first of a contiguous run.  A drive with no seek
+    // penalty has delayPerTrack = 0, and with everything 0 the disk never
+    // sleeps at all.
+    public synchronized void setLatency( int trackSize, int transferTime,
+					 int delayPerTrack, int streamTime ) {
+	this.trackSize = ( trackSize > 0 ) ? trackSize : 1;
+	this.transferTime = transferTime;
+	this.delayPerTrack = delayPerTrack;
+	this.streamTime = streamTime;
+    }
 
-	if ( blockId < 0 || blockId > diskSize ) {
-	    SysLib.cerr( "threadOS: a wrong blockId for read\n" );
-	    return false;
+    public synchronized void setScheduler( DiskScheduler scheduler ) {
+	this.scheduler = scheduler;
+    }
+
+    // Queues a command, or returns null while the queue is full.  A
+    // request queued with a whole completes a part of that request.
+    protected synchronized Request enqueue( int command, int blocks[],
+					    byte buffers[][], int offsets[],
+					    Request whole ) {
+	if ( isFull( ) ) {
+	    rejected++;
+	    return null;
 	}
+	Request request = new Request( command, blocks, buffers, offsets );
+	request.whole = whole;
+	queue( request );
+	return request;
+    }
 
-	if ( command == IDLE && readyBuffer == false ) {
-	    this.buffer = buffer;
-	    targetBlockId = blockId;
-	    command = READ;
-	    notify( );
-	    return true;
-	} else
-	    return false;
+    // Hands a request that fit in the queue to the disk thread.
+    protected synchronized void queue( Request request ) {
+	outstanding++;
+	pending.add( request );
+	notify( );
+    }
+
+    protected synchronized boolean isFull( ) {
+	return outstanding == QUEUE_DEPTH;
+    }
+
+    // An already failed request, for a command that could never be served.
+    private Request badRequest( ) {
+	Request request = new Request( IDLE, null, null, null );
+	request.failed = true;
+	request.complete( );
+	return request;
+    }
+
+    public synchronized Request read( int blockId, byte buffer[] ) {
+	return read( new int[] { blockId }, new byte[][] { buffer }, new int[1] );
+    }
+
+    public synchronized Request write( int blockId, byte buffer[] ) {
+	return write( new int[] { blockId }, new byte[][] { buffer }, new int[1] );
+    }
+
+    // Scatter/gather forms: one request moving blocks[i] to or from
+    // buffers[i] at offsets[i], served as a single command.
+    public synchronized Request read( int blocks[], byte buffers[][],
+				  int offsets[] ) {
+
+	if ( validate( blocks, buffers, offsets ) == false ) {
+	    SysLib.cerr( "threadOS: a wrong blockId for read\n" );
+	    return badRequest( );
+	}
+	return enqueue( READ, blocks, buffers, offsets, null );
     }
 
-    public synchronized boolean write( int blockId, byte buffer[] ) {
+    public synchronized Request write( int blocks[], byte buffers[][],
+				   int offsets[] ) {
 
-	if ( blockId < 0 || blockId > diskSize ) {
+	if ( validate( blocks, buffers, offsets ) == false ) {
 	    SysLib.cerr( "threadOS: a wrong blockId for write\n" );
-	    return false;
+	    return badRequest( );
 	}
+	return enqueue( WRITE, blocks, buffers, offsets, null );
+    }
 
-	if ( command == IDLE && readyBuffer == false ) {
-	    this.buffer = buffer;
-	    targetBlockId = blockId;
-	    command = WRITE;
-	    notify( );
-	    return true;
-	} else
+    private boolean validate( int blocks[], byte buffers[][], int offsets[] ) {
+	if ( blocks == null || blocks.length == 0 || buffers == null
+	     || offsets == null || buffers.length != blocks.length
+	     || offsets.length != blocks.length )
 	    return false;
+	for ( int i = 0; i < blocks.length; i++ ) {
+	    if ( blocks[i] < 0 || blocks[i] >= diskSize || buffers[i] == null
+		 || offsets[i] < 0 || offsets[i] + blockSize > buffers[i].length )
+		return false;
+	}
+	return true;
     }
 
-    public synchronized boolean sync( ) {
-	
-	if ( command == IDLE && readyBuffer == false ) {
-	    command = SYNC;
-	    notify( );
-	    // System.out.println( "DISK sync notified the disk" );
-	    return true;
-	} else
-	    return false;
+    public synchronized Request sync( ) {
+	// queued behind every earlier write, so they all reach the image
+	return enqueue( SYNC, null, null, null, null );
     }
 
-    public synchronized boolean testAndResetReady( ) {
-	if ( command == IDLE && readyBuffer == true ) {
-	    readyBuffer = false;
-	    return true;
-	} else
-	    return false;
+    // Adds what this disk has served since boot to stats.
+    public synchronized void stats( IoStats stats ) {
+	stats.diskCommands += commands;
+	stats.blocksRead += blocksRead;
+	stats.blocksWritten += blocksWritten;
+	stats.seekTime += seekTime;
     }
 
-    public synchronized boolean testReady( ) {
-	if ( command == IDLE && readyBuffer == true ) {
-	    return true;
-	} else
+    // True if a request was turned away since the last call, in which case
+    // the caller should wake one thread waiting for a place in the queue.
+    public synchronized boolean takeRejected( ) {
+	if ( rejected == 0 )
 	    return false;
+	rejected--;
+	return true;
     }
 
-    private synchronized void waitCommand( ) {
-	while ( command == IDLE ) {
+    private synchronized Request waitCommand( ) {
+	while ( pending.isEmpty( ) ) {
 	    try {
 		wait( );
 	    } catch ( InterruptedException e ) {
 		SysLib.cerr( e.toString( ) + "\n" );
 	    }
-	    readyBuffer = false;
 	}
+	int count = 0;
+	while ( count < pending.size( ) && pending.get( count ).command != SYNC )
+	    count++;
+	int next = 0;
+	if ( count > 0 && pending.get( 0 ).bypassed < MAX_BYPASS )
+	    next = scheduler.next( pending, count,
+				   currentBlockId / trackSize, trackSize );
+	for ( int i = 0; i < next; i++ )
+	    pending.get( i ).bypassed++;
+	return pending.remove( next );
     }
 
-    private void seek( ) {
+    // Moves the head to blockId and streams run contiguous blocks from
+    // there: one seek, then only streamTime for each block after the first.
+    private void seek( int blockId, int run ) {
 	int seekTime = transferTime + delayPerTrack 
-	    * Math.abs( targetBlockId/trackSize - currentBlockId/trackSize );
+	    * Math.abs( blockId/trackSize - currentBlockId/trackSize )
+	    + ( run - 1 ) * streamTime;
+	synchronized ( this ) {
+	    this.seekTime += seekTime;
+	}
+	if ( seekTime > 0 ) {
+	    try {
+		Thread.sleep( seekTime );
+	    } catch( InterruptedException e ) {
+		SysLib.cerr( e.toString( ) + "\n" );
+	    }
+	}
+	currentBlockId = blockId + run - 1;
+    }
+
+    // Serves a READ or WRITE in block order, coalescing runs of contiguous
+    // blocks into one transfer.  The runs are taken in one sweep starting
+    // from whichever end of the request is nearer the head, each run
+    // streamed upward.  When a block appears twice in a WRITE the later
+    // buffer wins: the sort is stable and only the last of them is kept,
+    // whichever way the sweep goes.
+    private void transfer( final Request request ) {
+	Integer order[] = new Integer[ request.blocks.length ];
+	for ( int i = 0; i < order.length; i++ )
+	    order[i] = i;
+	Arrays.sort( order, new Comparator<Integer>( ) {
+		public int compare( Integer a, Integer b ) {
+		    return Integer.compare( request.blocks[a], request.blocks[b] );
+		}
+	    } );
+	if ( request.command == WRITE ) {
+	    int kept = 0;
+	    for ( int i = 0; i < order.length; i++ ) {
+		if ( i + 1 < order.length && request.blocks[ order[ i + 1 ] ]
+		     == request.blocks[ order[i] ] )
+		    continue;
+		order[ kept++ ] = order[i];
+	    }
+	    order = Arrays.copyOf( order, kept );
+	}
+	Vector<Integer> runs = new Vector<Integer>( ); // index in order
+	for ( int i = 0; i < order.length; i++ ) {
+	    if ( i == 0 || request.blocks[ order[i] ]
+		 != request.blocks[ order[ i - 1 ] ] + 1 )
+		runs.add( i );
+	}
+	if ( order.length == 0 )
+	    return;
+	int lowest = request.blocks[ order[0] ];
+	int highest = request.blocks[ order[ order.length - 1 ] ];
+	boolean downward = Math.abs( highest - currentBlockId )
+	    < Math.abs( currentBlockId - lowest );
+	for ( int r = 0; r < runs.size( ); r++ ) {
+	    int k = downward ? runs.size( ) - 1 - r : r;
+	    int first = runs.get( k );
+	    int run = ( ( k + 1 < runs.size( ) ) ? runs.get( k + 1 )
+			: order.length ) - first;
+	    seek( request.blocks[ order[first] ], run );
+	    for ( int i = first; i < first + run; i++ ) {
+		int j = order[i];
+		if ( request.command == READ )
+		    readBlock( request.blocks[j], request.buffers[j],
+			       request.offsets[j] );
+		else
+		    writeBlock( request.blocks[j], request.buffers[j],
+				request.offsets[j] );
+	    }
+	}
+    }
+
+    protected void readBlock( int blockId, byte buffer[], int offset ) {
+	System.arraycopy( data, blockId * blockSize, 
+			  buffer, offset, 
+			  blockSize );
+    }
+
+    protected void writeBlock( int blockId, byte buffer[], int offset ) {
+	System.arraycopy( buffer, offset, 
+			  data, blockId * blockSize, 
+			  blockSize );
+    }
+
+    // Rewrites the whole DISK file from the heap image.
+    protected void syncImage( ) {
 	try {
-	    Thread.sleep( seekTime );
-	} catch( InterruptedException e ) {
-	    SysLib.cerr( e.toString( ) + "\n" );
+	    FileOutputStream ofstream = new FileOutputStream( image );
+	    ofstream.write( data );
+	    ofstream.close( );
+	} catch ( FileNotFoundException e ) {
+	    SysLib.cerr( e.toString( ) );
+	} catch ( IOException e ) {
+	    SysLib.cerr( e.toString( ) );
 	}
-	currentBlockId = targetBlockId;
     }
 
-    private synchronized void finishCommand( ) {
-	command = IDLE;
-	readyBuffer = true;
-	SysLib.disk( ); // a disk interrupt
+    private void finishCommand( Request request ) {
+	synchronized ( this ) {
+	    outstanding--;
+	    commands++;
+	    if ( request.command == READ )
+		blocksRead += request.blocks.length;
+	    else if ( request.command == WRITE )
+		blocksWritten += request.blocks.length;
+	}
+	SysLib.disk( request ); // a disk interrupt
     }
 
     public void run ( ) {
 	
 	while ( true ) {
-	    waitCommand( );
-	    seek( );
-	    // System.out.println( "Disk: command = " + command );
-	    switch( command ) {
+	    Request request = waitCommand( );
+	    // System.out.println( "Disk: command = " + request.command );
+	    switch( request.command ) {
 	    case READ:
-		System.arraycopy( data, targetBlockId * blockSize, 
-				  buffer, 0, 
-				  blockSize );
-		break;
 	    case WRITE:
-		System.arraycopy( buffer, 0, 
-				  data, targetBlockId * blockSize, 
-				  blockSize );
+		transfer( request );
 		break;
 	    case SYNC:
-		try {
-		    FileOutputStream ofstream = new FileOutputStream( "DISK" );
-		    ofstream.write( data );
-		    ofstream.close( );
-		} catch ( FileNotFoundException e ) {
-		    SysLib.cerr( e.toString( ) );
-		} catch ( IOException e ) {
-		    SysLib.cerr( e.toString( ) );
-		}
+		seek( currentBlockId, 1 ); // a SYNC leaves the head where it is
+		syncImage( );
 		// SysLib.cerr( "threadOS: DISK synchronized\n" );
 		break;
 	    }
-	    finishCommand( );
+	    finishCommand( request );
 	}
     }
 }
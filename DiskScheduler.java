@@ -0,0 +1,114 @@
+import java.util.*;
+
+// Picks which queued request the disk serves next.  Disk hands over only
+// the requests a policy may reorder (those ahead of any pending SYNC) and
+// enforces the starvation bound itself, so a policy only has to rank the
+// candidates by track.
+public abstract class DiskScheduler {
+    // Returns the index in pending[0..count) of the request to serve next,
+    // given the track the head is on.  pending is in arrival order.
+    public abstract int next( Vector<Disk.Request> pending, int count,
+			      int headTrack, int trackSize );
+
+    private String name;
+
+    // Instantiate a policy by name: fcfs, sstf, scan or clook.
+    public static DiskScheduler create( String name ) {
+	DiskScheduler policy;
+	if ( name.equals( "sstf" ) )
+	    policy = new SSTF( );
+	else if ( name.equals( "scan" ) )
+	    policy = new Scan( );
+	else if ( name.equals( "clook" ) )
+	    policy = new CLook( );
+	else {
+	    if ( !name.equals( "fcfs" ) )
+		SysLib.cerr( "threadOS: unknown disk scheduler " + name
+			     + ", using fcfs\n" );
+	    policy = new FCFS( );
+	    name = "fcfs";
+	}
+	policy.name = name;
+	return policy;
+    }
+
+    // A fresh instance of the same policy, for another disk: policies
+    // such as SCAN keep per-head state and cannot be shared.
+    public DiskScheduler copy( ) {
+	return create( name );
+    }
+
+    // First come, first served: always the oldest request.
+    private static class FCFS extends DiskScheduler {
+	public int next( Vector<Disk.Request> pending, int count,
+			 int headTrack, int trackSize ) {
+	    return 0;
+	}
+    }
+
+    // Shortest seek time first: the request nearest the head, the oldest
+    // one among ties.
+    private static class SSTF extends DiskScheduler {
+	public int next( Vector<Disk.Request> pending, int count,
+			 int headTrack, int trackSize ) {
+	    int best = 0;
+	    int bestDistance = Integer.MAX_VALUE;
+	    for ( int i = 0; i < count; i++ ) {
+		int distance = Math.abs( pending.get( i ).blockId / trackSize
+					 - headTrack );
+		if ( distance < bestDistance ) {
+		    best = i;
+		    bestDistance = distance;
+		}
+	    }
+	    return best;
+	}
+    }
+
+    // SCAN (elevator): keep moving the head in one direction, serving the
+    // nearest request on the way, and reverse when nothing is left ahead.
+    private static class Scan extends DiskScheduler {
+	private boolean up = true;
+
+	public int next( Vector<Disk.Request> pending, int count,
+			 int headTrack, int trackSize ) {
+	    int found = nearestAhead( pending, count, headTrack, trackSize, up );
+	    if ( found < 0 ) {
+		up = !up;
+		found = nearestAhead( pending, count, headTrack, trackSize, up );
+	    }
+	    return found;
+	}
+    }
+
+    // C-LOOK: serve requests only while moving up, then jump back to the
+    // lowest pending track and sweep up again.
+    private static class CLook extends DiskScheduler {
+	public int next( Vector<Disk.Request> pending, int count,
+			 int headTrack, int trackSize ) {
+	    int found = nearestAhead( pending, count, headTrack, trackSize, true );
+	    if ( found >= 0 )
+		return found;
+	    return nearestAhead( pending, count, -1, trackSize, true );
+	}
+    }
+
+    // Index of the request nearest to headTrack in the given direction,
+    // the head's own track included, or -1 if there is none.
+    private static int nearestAhead( Vector<Disk.Request> pending, int count,
+				     int headTrack, int trackSize,
+				     boolean up ) {
+	int best = -1;
+	int bestDistance = Integer.MAX_VALUE;
+	for ( int i = 0; i < count; i++ ) {
+	    int distance = pending.get( i ).blockId / trackSize - headTrack;
+	    if ( !up )
+		distance = -distance;
+	    if ( distance >= 0 && distance < bestDistance ) {
+		best = i;
+		bestDistance = distance;
+	    }
+	}
+	return best;
+    }
+}
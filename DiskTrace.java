@@ -0,0 +1,122 @@
+import java.io.*;
+
+// Records every block I/O system call to a binary trace file, for
+// TraceReplay to play back.  The file starts with MAGIC and VERSION, then
+// holds one RECORD_SIZE record per block:
+//   long  nanoseconds since the trace started
+//   int   thread id of the caller, -1 outside any ThreadOS thread
+//   int   block number, -1 for a sync or flush
+//   byte  system call, Kernel.RAWREAD, RAWWRITE, SYNC, CREAD, CWRITE,
+//         CSYNC, CFLUSH or CPREFETCH; a scatter/gather call or a prefetch
+//         hint is one record per block, and a direct read or write past
+//         the cache is a RAWREAD or RAWWRITE
+// Only the outermost call of a thread is recorded, so the raw I/O a cache
+// miss causes inside CREAD is not recorded a second time.
+public class DiskTrace {
+    public static final int MAGIC = 0x54524345; // "TRCE"
+    public static final int VERSION = 2; // 1 had no CPREFETCH
+    public static final int RECORD_SIZE = 17;
+
+    private DataOutputStream out;
+    private long start;
+    private ThreadLocal<Boolean> inside = new ThreadLocal<Boolean>( );
+
+    public DiskTrace( String fileName ) throws IOException {
+	out = new DataOutputStream( new BufferedOutputStream(
+	    new FileOutputStream( fileName ) ) );
+	out.writeInt( MAGIC );
+	out.writeInt( VERSION );
+	start = System.nanoTime( );
+	// the kernel never shuts down, so flush what is buffered on exit
+	Runtime.getRuntime( ).addShutdownHook( new Thread( ) {
+		public void run( ) {
+		    close( );
+		}
+	    } );
+    }
+
+    // Records the call if it is block I/O and the thread is not already
+    // inside a recorded call, in which case the caller must call leave( )
+    // once the call returns.
+    public boolean enter( int cmd, int param, Object args, int tid ) {
+	// the cache's own flushing is left out too, a replay redoes it, and
+	// so are the reads of its read-ahead, which a replay redoes from the
+	// CPREFETCH hints that asked for them
+	Thread self = Thread.currentThread( );
+	if ( inside.get( ) != null || self instanceof Cache.Flusher
+	     || self instanceof Cache.Prefetcher )
+	    return false;
+	switch ( cmd ) {
+	case Kernel.RAWREAD:
+	case Kernel.RAWWRITE:
+	case Kernel.CREAD:
+	case Kernel.CWRITE:
+	    record( cmd, tid, new int[] { param } );
+	    break;
+	case Kernel.SYNC:
+	case Kernel.CSYNC:
+	case Kernel.CFLUSH:
+	    record( cmd, tid, new int[] { -1 } );
+	    break;
+	case Kernel.RAWREADV:
+	case Kernel.CREADDIRECT:
+	    record( Kernel.RAWREAD, tid, ( int[] )( ( Object[] )args )[0] );
+	    break;
+	case Kernel.RAWWRITEV:
+	case Kernel.CWRITEDIRECT:
+	    record( Kernel.RAWWRITE, tid, ( int[] )( ( Object[] )args )[0] );
+	    break;
+	case Kernel.CREADV:
+	    record( Kernel.CREAD, tid, ( int[] )( ( Object[] )args )[0] );
+	    break;
+	case Kernel.CPREFETCH:
+	    record( cmd, tid, ( int[] )args );
+	    break;
+	case Kernel.CREADCLASS:
+	    record( Kernel.CREAD, tid, new int[] { param } );
+	    break;
+	case Kernel.CWRITECLASS:
+	case Kernel.CWRITEPART:
+	    record( Kernel.CWRITE, tid, new int[] { param } );
+	    break;
+	default:
+	    return false;
+	}
+	inside.set( Boolean.TRUE );
+	return true;
+    }
+
+    public void leave( ) {
+	inside.remove( );
+    }
+
+    private synchronized void record( int cmd, int tid, int blocks[] ) {
+	if ( out == null )
+	    return;
+	long time = System.nanoTime( ) - start;
+	try {
+	    for ( int i = 0; i < blocks.length; i++ ) {
+		out.writeLong( time );
+		out.writeInt( tid );
+		out.writeInt( blocks[i] );
+		out.writeByte( cmd );
+	    }
+	    // a sync is a good point to make the trace durable as well
+	    if ( cmd == Kernel.SYNC || cmd == Kernel.CSYNC )
+		out.flush( );
+	} catch ( IOException e ) {
+	    SysLib.cerr( "threadOS: trace stopped, " + e + "\n" );
+	    out = null;
+	}
+    }
+
+    public synchronized void close( ) {
+	if ( out == null )
+	    return;
+	try {
+	    out.close( );
+	} catch ( IOException e ) {
+	}
+	out = null;
+    }
+}
@@ -58,6 +58,14 @@ public class FileSystem {
      * static definition of an error
      */
     private static final int ERROR = -1;
+    /**
+     * blocks read ahead once a file is first read sequentially
+     */
+    private static final int MIN_READ_AHEAD = 4;
+    /**
+     * the read ahead window doubles on every sequential read up to this
+     */
+    private static final int MAX_READ_AHEAD = 32;
     /**
      * Constructor for the file system disk and scheduler are stored for 
      * reference
@@ -82,12 +90,15 @@ public class FileSystem {
      * Opens any given file in a mode. If a file does not exist in mode r, a new 
      * file cannot be 
      * @param filename file to open
-     * @param mode mode r, w, w+,a
+     * @param mode mode r, w, w+,a, any of them followed by d to move whole
+     * data blocks past the cache
      * @return fd or error
      */
     public int open(String filename, String mode) {
         //see if we are opening in a valid mode
-        if (!(mode == "r" || mode == "w" || mode == "w+" || mode == "a")) {
+        String baseMode = FileTableEntry.baseMode(mode);
+        if (!(baseMode == "r" || baseMode == "w" || baseMode == "w+"
+                || baseMode == "a")) {
             return ERROR;
         }
         //get the current proccesses tcb
@@ -113,6 +124,8 @@ public class FileSystem {
         if (entry == null) {
             return ERROR;
         }
+        //keep the file's indirect block cached while it is open
+        pinIndirect(entry);
         //set the tcb entry
         tcb.ftEnt[fd] = entry;
         //return where we stuck the file entry
@@ -135,6 +148,8 @@ public class FileSystem {
         if (tcb == null || fd >= tcb.ftEnt.length || tcb.ftEnt[fd] == null) {
             return ERROR;
         }
+        //the indirect block may be freed below, let it go first
+        unpinIndirect(tcb.ftEnt[fd]);
         //check to see if the current proccess is marked for deletion
         if (--tcb.ftEnt[fd].inode.count < 1 && tcb.ftEnt[fd].inode.isDying()) {
             if (!fileTable.ffree(tcb.ftEnt[fd])) {
@@ -250,13 +265,14 @@ public class FileSystem {
                 // Delete all of the indirect blocks
                 if (current.indirect != -1) {
                     byte[] indirectData = new byte[Disk.blockSize];
-                    if (SysLib.cread(current.indirect, indirectData) != SUCCESS) {
+                    if (SysLib.cread(current.indirect, indirectData,
+                                     IoStats.INDIRECT) != SUCCESS) {
                         return ERROR;
                     }
                     //delete all indirect data
-                    short indirectBlock = 0;
-                    for (short indirectIndex = 0; indirectIndex < 256; indirectIndex++) {
-                        indirectBlock = SysLib.bytes2short(indirectData, indirectIndex * 2);
+                    int indirectBlock = 0;
+                    for (int indirectIndex = 0; indirectIndex < Inode.pointersPerBlock(); indirectIndex++) {
+                        indirectBlock = Inode.getPointer(indirectData, indirectIndex);
 
                         if (indirectBlock <= 0) {
                             continue;
@@ -267,6 +283,35 @@ public class FileSystem {
                     // return the indirect pointer block
                     superBlock.returnBlock(current.indirect);
                 }
+                // and those below the double indirect block
+                if (current.doubleIndirect != -1) {
+                    byte[] doubleData = new byte[Disk.blockSize];
+                    byte[] pointerData = new byte[Disk.blockSize];
+                    if (SysLib.cread(current.doubleIndirect, doubleData,
+                                     IoStats.INDIRECT) != SUCCESS) {
+                        return ERROR;
+                    }
+                    for (int g = 0; g < Inode.pointersPerBlock(); g++) {
+                        int pointerBlock = Inode.getPointer(doubleData, g);
+                        if (pointerBlock <= 0) {
+                            continue;
+                        }
+                        if (SysLib.cread(pointerBlock, pointerData,
+                                         IoStats.INDIRECT) != SUCCESS) {
+                            return ERROR;
+                        }
+                        for (int k = 0; k < Inode.pointersPerBlock(); k++) {
+                            int dataBlock = Inode.getPointer(pointerData, k);
+                            if (dataBlock > 0) {
+                                superBlock.returnBlock(dataBlock);
+                            }
+                        }
+                        superBlock.returnBlock(pointerBlock);
+                    }
+                    superBlock.returnBlock(current.doubleIndirect);
+                }
+                //the frees only changed the bitmap in memory so far
+                superBlock.syncBitmap();
                 //remove the reference in the inode table
                 for(int j = 0; j < fileTable.table.size(); j++)
                 {
@@ -316,9 +361,6 @@ public class FileSystem {
         {
             return ERROR;
         }
-        //errrVal will be a value we repedily use to check for valid results from
-        //system calls
-        int errVal = SUCCESS;
         // Blocking until the current write operation is finished, if any
         entry.inode.waitRead(); 
          // Int division truncates remainder
@@ -329,132 +371,228 @@ public class FileSystem {
         int readSize = (entry.seekPtr + buffer.length > entry.inode.length) ?
                 entry.inode.length - entry.seekPtr
                 : buffer.length;
-        // Calculate how many blocks will be read (always at least 1)
-        int blockCount = (blockOffset + readSize) / Disk.blockSize + 1; 
-        int lastBlock = (entry.seekPtr + readSize) / Disk.blockSize;
+        if (readSize <= 0) {
+            entry.inode.finishRead();
+            return 0;
+        }
+        // The last block holding any of the bytes we read
+        int lastBlock = (entry.seekPtr + readSize - 1) / Disk.blockSize;
 
-        byte[] blockData = new byte[Disk.blockSize];
-        //indirect data will be used for referencing our indirect locations
-        //in the future
-        byte[] indirectData = null;
-        // Are we referencing an indirect blockCount
-        if (blockNum >= entry.inode.direct.length) //indirect
-        {
-            indirectData = new byte[Disk.blockSize];
-            //read our indirect pointers from disk
-            errVal = SysLib.cread(entry.inode.indirect, indirectData);
-            //Check for failed read
-            if (errVal != SUCCESS) {
-                entry.inode.finishRead();
-                return ERROR;
+        //the pointer blocks of the file, read as the blocks need them
+        Pointers pointers = new Pointers(entry.inode);
+        //gather every block of the read into one scatter/gather cread, 
+        //whole blocks go straight into the caller's buffer and the partial
+        //blocks at either edge into blocks of their own
+        int blockCount = lastBlock - blockNum + 1;
+        int[] blocks = new int[blockCount];
+        byte[][] blockBuffers = new byte[blockCount][];
+        int[] offsets = new int[blockCount];
+        int bufferOffset = 0;
+        for (int i = 0; i < blockCount; i++, blockNum++) {
+            //get the pointer to the block from the inode or a pointer block
+            blocks[i] = pointers.blockOf(blockNum, true);
+            // Bound the individual block read size by the size of the block itself
+            int start = (i == 0) ? blockOffset : 0;
+            int blockReadSize = Math.min(Disk.blockSize - start,
+                    readSize - bufferOffset);
+            if (blockReadSize == Disk.blockSize) {
+                blockBuffers[i] = buffer;
+                offsets[i] = bufferOffset;
+            } else {
+                blockBuffers[i] = new byte[Disk.blockSize];
             }
-            //read the indirect data
-            errVal = SysLib.cread(
-                    //get the pointer to the indirect block that we need
-                    SysLib.bytes2short(indirectData,
-                        //offset
-                        (blockNum - entry.inode.direct.length) * 2), 
-                    //destination
-                    blockData);
-            //check to see if the read was a failure
-            if (errVal != SUCCESS) {
-                entry.inode.finishRead();
-                return ERROR;
+            bufferOffset += blockReadSize;
+        }
+        if (pointers.failed) {
+            entry.inode.finishRead();
+            return ERROR;
+        }
+        //read every block at once
+        if (readBlocks(entry, blocks, blockBuffers, offsets, buffer)
+                != SUCCESS) {
+            entry.inode.finishRead();
+            return ERROR;
+        }
+        //copy the partial edge blocks to our return location
+        bufferOffset = 0;
+        for (int i = 0; i < blockCount; i++) {
+            int start = (i == 0) ? blockOffset : 0;
+            int blockReadSize = Math.min(Disk.blockSize - start,
+                    readSize - bufferOffset);
+            if (blockBuffers[i] != buffer) {
+                System.arraycopy(blockBuffers[i], start,
+                        buffer, bufferOffset,
+                        blockReadSize);
             }
-            //we have read one of the blocks already so increment
-            blockNum++;
-
+            bufferOffset += blockReadSize;
         }
-         // Are we starting the reads at the direct connected blocks
-        else //direct
-        {
-            // If we will be accessing the indirect block, load it now
-            if (blockNum + blockCount >= entry.inode.direct.length) 
-            {
-                
-                indirectData = new byte[Disk.blockSize];
-                errVal = SysLib.cread(entry.inode.indirect, indirectData);
-                //failure to read indirect pointers
-                if (errVal != SUCCESS) {
-                    entry.inode.finishRead();
-                    return ERROR;
+        //remember where the read started for the read ahead
+        int readStart = entry.seekPtr;
+        //increment the seekptr based on how much we read
+        entry.seekPtr += readSize;
+        //start loading what a sequential reader will ask for next, unless
+        //the file is read past the cache
+        if (!entry.direct) {
+            readAhead(entry, readStart, lastBlock, pointers);
+        }
+        //release the wolves!
+        entry.inode.finishRead();
+        //return the amount we read
+        return readSize;
+    }
+
+    /**
+     * Reads the blocks of a file read with one scatter/gather cread, or in
+     * direct mode the whole blocks going straight into the caller's buffer
+     * with one direct read past the cache and the partial edge blocks
+     * through it. Blocks allocated but never written are zeros, they are
+     * not read at all
+     * @param entry the file read
+     * @param blocks the blocks to read
+     * @param blockBuffers where each one goes
+     * @param offsets the offset in its buffer
+     * @param buffer the caller's buffer
+     * @return success/error
+     */
+    private int readBlocks(FileTableEntry entry, int[] blocks,
+            byte[][] blockBuffers, int[] offsets, byte[] buffer) {
+        boolean[] unwritten = superBlock.findUnwritten(blocks);
+        if (unwritten != null) {
+            int count = 0;
+            int[] written = new int[blocks.length];
+            byte[][] writtenBuffers = new byte[blocks.length][];
+            int[] writtenOffsets = new int[blocks.length];
+            for (int i = 0; i < blocks.length; i++) {
+                if (unwritten[i]) {
+                    Arrays.fill(blockBuffers[i], offsets[i],
+                            offsets[i] + Disk.blockSize, (byte) 0);
+                } else {
+                    written[count] = blocks[i];
+                    writtenBuffers[count] = blockBuffers[i];
+                    writtenOffsets[count++] = offsets[i];
                 }
             }
-            //read in block data
-            errVal = SysLib.cread(entry.inode.direct[blockNum++], blockData);
-            //failed read?
-            if (errVal != SUCCESS) {
-                entry.inode.finishRead();
-                return ERROR;
+            if (count == 0) {
+                return SUCCESS;
             }
+            blocks = Arrays.copyOf(written, count);
+            blockBuffers = Arrays.copyOf(writtenBuffers, count);
+            offsets = Arrays.copyOf(writtenOffsets, count);
         }
-        // Most simple version for small reads
-        if (blockCount == 1) 
-        {
-            //copy in data from our read to our read to location
-            System.arraycopy(blockData, blockOffset,
-                    buffer, 0,
-                    readSize);
-            //increment the seekptr based on how much we read
-            entry.seekPtr += readSize;
-        }
-        else //multiblock
-        {
-            //the location in the block we will be starting our read at
-            int bufferOffset = Disk.blockSize - blockOffset;
-            //copy read data to the return to location
-            System.arraycopy(blockData, blockOffset,
-                    buffer, 0,
-                    bufferOffset);
-            //loop threw all of the blocks we are going to read from
-            for (; blockNum <= lastBlock; blockNum++) {
+        if (!entry.direct) {
+            return SysLib.cread(blocks, blockBuffers, offsets);
+        }
+        int wholeCount = 0;
+        for (int i = 0; i < blocks.length; i++) {
+            if (blockBuffers[i] == buffer) {
+                wholeCount++;
+            }
+        }
+        int[] whole = new int[wholeCount];
+        byte[][] wholeBuffers = new byte[wholeCount][];
+        int[] wholeOffsets = new int[wholeCount];
+        int[] edge = new int[blocks.length - wholeCount];
+        byte[][] edgeBuffers = new byte[edge.length][];
+        int w = 0;
+        int e = 0;
+        for (int i = 0; i < blocks.length; i++) {
+            if (blockBuffers[i] == buffer) {
+                whole[w] = blocks[i];
+                wholeBuffers[w] = buffer;
+                wholeOffsets[w++] = offsets[i];
+            } else {
+                edge[e] = blocks[i];
+                edgeBuffers[e++] = blockBuffers[i];
+            }
+        }
+        if (wholeCount > 0 && SysLib.directread(whole, wholeBuffers,
+                wholeOffsets) != SUCCESS) {
+            return ERROR;
+        }
+        if (edge.length > 0 && SysLib.cread(edge, edgeBuffers,
+                new int[edge.length]) != SUCCESS) {
+            return ERROR;
+        }
+        return SUCCESS;
+    }
 
-                // Bound the individual block read size by the size of the block itself
-                int blockReadSize = (readSize - bufferOffset > Disk.blockSize)
-                        ? Disk.blockSize : readSize - bufferOffset;
-                // Are we accessing an indirect block
-                if (blockNum >= entry.inode.direct.length) //yes
-                {
-                    //read from disk
-                    errVal = SysLib.cread(
-                            //read the pointer to the block
-                            SysLib.bytes2short(indirectData,
-                                    //offset to the pointer
-                                    (blockNum - entry.inode.direct.length) * 2),
-                            blockData);
-                    //failed to read
-                    if (errVal != SUCCESS) {
-                        entry.inode.finishRead();
-                        return ERROR;
-                    }
-                } else // Nope, we are a direct block
-                {
-                    //read from direct block
-                    errVal = SysLib.cread(entry.inode.direct[blockNum], blockData);
-                    //failed
-                    if (errVal != SUCCESS) {
-                        entry.inode.finishRead();
-                        return ERROR;
-                    }
+    /**
+     * Grows the read ahead window of a file read sequentially and asks the
+     * cache to load the blocks past the ones just read in the background.
+     * A read that does not start where the previous one ended closes the
+     * window again. The indirect block is read ahead on its own first, its
+     * pointers are only used once it has been loaded. Past it, only the
+     * pointer blocks the read went through are used. Blocks the cache has
+     * no room for yet are offered again by the next read.
+     * @param entry the file read
+     * @param readStart seek pointer the read started at
+     * @param lastBlock last block of the file the read touched
+     * @param pointers the pointer blocks the read loaded
+     */
+    private void readAhead(FileTableEntry entry, int readStart,
+            int lastBlock, Pointers pointers) {
+        Inode inode = entry.inode;
+        if (readStart == entry.sequentialEnd) {
+            entry.readAhead = Math.min(MAX_READ_AHEAD,
+                    Math.max(MIN_READ_AHEAD, entry.readAhead * 2));
+        } else {
+            entry.readAhead = 0;
+            entry.readAheadEnd = 0;
+            entry.indirectReadAhead = false;
+        }
+        entry.sequentialEnd = entry.seekPtr;
+        if (entry.readAhead == 0) {
+            return;
+        }
+        //only the blocks not already read or read ahead
+        int first = Math.max(lastBlock + 1, entry.readAheadEnd);
+        int last = Math.min(lastBlock + entry.readAhead,
+                (inode.length - 1) / Disk.blockSize);
+        if (first > last) {
+            return;
+        }
+        int[] blocks = new int[last - first + 1];
+        int count = 0;
+        boolean indirectOffered = false;
+        int blockNum = first;
+        for (; blockNum <= last; blockNum++) {
+            int block;
+            if (blockNum >= inode.direct.length
+                    && blockNum < Inode.doubleIndirectStart()
+                    && pointers.indirect == null) {
+                if (inode.indirect <= 0) {
+                    break;
                 }
-                //failed at life, liberity, and the persute of happyness
-                if (errVal != SUCCESS) {
-                    entry.inode.finishRead();
-                    return ERROR;
+                if (!entry.indirectReadAhead) {
+                    //load the pointers first, the data behind them next time
+                    entry.indirectReadAhead = true;
+                    indirectOffered = true;
+                    blocks[count++] = inode.indirect;
+                    break;
                 }
-                //copy data to our return location
-                System.arraycopy(blockData, 0,
-                        buffer, bufferOffset,
-                        blockReadSize);
-                //increment based on how much we read
-                entry.seekPtr += blockReadSize;
-                bufferOffset += blockReadSize;
+                //read ahead already, so this should be a cache hit
+                block = pointers.blockOf(blockNum, true);
+            } else {
+                block = pointers.blockOf(blockNum, false);
+            }
+            //a hole ends the read ahead
+            if (block <= 0) {
+                break;
+            }
+            blocks[count++] = block;
+        }
+        entry.readAheadEnd = blockNum;
+        if (count == 0) {
+            return;
+        }
+        //the cache may take only the first few, offer the rest next time
+        int taken = SysLib.prefetch(Arrays.copyOf(blocks, count));
+        if (taken < count) {
+            entry.readAheadEnd = first + taken;
+            if (indirectOffered) {
+                entry.indirectReadAhead = false;
             }
         }
-        //release the wolves!
-        entry.inode.finishRead();
-        //return the amount we read
-        return readSize;
     }
     /**
      * Writes to a file from  the seek pointer, will overide data
@@ -480,241 +618,444 @@ public class FileSystem {
         {
             return ERROR;
         }
-        //var used to check for errors in system calls
-        int errVal = SUCCESS;
+        Inode inode = entry.inode;
         // Blocking until the current write operation is finished, if any
-        entry.inode.waitWrite();
-        // Int division truncates remainder
-        int blockNum = entry.seekPtr / Disk.blockSize; 
-        // Remainder is the first block offset
-        int blockOffset = entry.seekPtr % Disk.blockSize; 
+        inode.waitWrite();
         // Bound the writeSize by the size of the file itself
-        int writeSize = (entry.seekPtr + buffer.length > Inode.MAX_FILE_SIZE) ? 
-                Inode.MAX_FILE_SIZE - entry.seekPtr
+        int writeSize = (entry.seekPtr + buffer.length > Inode.maxFileSize()) ?
+                Inode.maxFileSize() - entry.seekPtr
                 : buffer.length;
-        // Calculate how many blocks will be read (always at least 1)
-        int blockCount = (blockOffset + writeSize) / Disk.blockSize + 1;
-        int lastBlock = (entry.seekPtr + writeSize) / Disk.blockSize;
-        //current number of blocks read
-        short blockIndex = -1;
-
-        byte[] blockData = new byte[Disk.blockSize];
-        byte[] indirectData = null;
-         // Are we referencing an indirect blockCount
-        if (blockNum >= entry.inode.direct.length)//indirect
-        {
-            //if we don't have anydirect pointers set a new block for 'em
-            if (entry.inode.indirect == -1) {
-                entry.inode.indirect = superBlock.getNextFreeBlock();
-            }
-            //if we can't create/load the indirect pointer block error
-            if (entry.inode.indirect == -1) {
-                entry.inode.finishWrite();
-                return ERROR;
+        int bufferOffset = 0;
+        //in direct mode the whole blocks, which follow one another in the
+        //buffer, are written together past the cache once the loop is done
+        int[] directBlocks = new int[entry.direct
+                ? writeSize / Disk.blockSize : 0];
+        int directCount = 0;
+        int directStart = 0;
+        int lengthBefore = inode.length;
+        //the blocks of the file the write reaches
+        int firstBlock = entry.seekPtr / Disk.blockSize;
+        int lastBlock = (entry.seekPtr + writeSize - 1) / Disk.blockSize;
+        //the pointer blocks of the file, read as the blocks need them
+        Pointers pointers = new Pointers(inode);
+        if (writeSize > 0 && lastBlock >= inode.direct.length) {
+            pinIndirect(entry);
+        }
+        //every block the write needs, from one call to the allocator
+        int[] newBlocks = (writeSize > 0)
+                ? allocateFor(pointers, firstBlock, lastBlock)
+                : new int[0];
+        if (pointers.failed) {
+            superBlock.returnBlocks(newBlocks, 0, newBlocks.length);
+            inode.finishWrite();
+            return ERROR;
+        }
+        int nextNew = 0;
+        //the blocks written, which no longer read as zeros
+        int[] written = new int[(writeSize > 0)
+                ? lastBlock - firstBlock + 1 + newBlocks.length : 0];
+        int writtenCount = 0;
+        while (bufferOffset < writeSize) {
+            // Int division truncates remainder
+            int blockNum = entry.seekPtr / Disk.blockSize;
+            // Remainder is the offset in the block
+            int blockOffset = entry.seekPtr % Disk.blockSize;
+            // Bound the individual block write size by the block itself
+            int blockWriteSize = Math.min(Disk.blockSize - blockOffset,
+                    writeSize - bufferOffset);
+            //a block we allocate now holds nothing worth reading
+            boolean fresh = false;
+            //the first write past the direct blocks, or into a new stretch of
+            //the double indirect blocks, takes the next new blocks for the
+            //pointers
+            int missing = pointers.missing(blockNum);
+            if (missing > 0) {
+                if (nextNew + missing > newBlocks.length
+                        || !pointers.attach(blockNum, newBlocks, nextNew)) {
+                    break;
+                }
+                for (int i = 0; i < missing; i++) {
+                    written[writtenCount++] = newBlocks[nextNew++];
+                }
+                pinIndirect(entry);
             }
-            //load our indirect pointer block
-            indirectData = new byte[Disk.blockSize];
-            errVal = SysLib.cread(entry.inode.indirect, indirectData);
-            //can't load, error
-            if (errVal != SUCCESS) {
-                entry.inode.finishWrite();
-                return ERROR;
+            int blockIndex = pointers.blockOf(blockNum, true);
+            //if the block is not there, take the next new one
+            if (blockIndex == -1) {
+                if (nextNew == newBlocks.length
+                        || !pointers.set(blockNum, newBlocks[nextNew])) {
+                    break;
+                }
+                blockIndex = newBlocks[nextNew];
+                nextNew++;
+                fresh = true;
             }
-            //the offset to the pointer of the indred block
-            short indirectIndex = (short) ((blockNum - entry.inode.direct.length) * 2);
-            //load the pointer to the indirect block
-            short indirectBlock = SysLib.bytes2short(indirectData, indirectIndex);
-            //if we grabed a formated block, get a new one
-            if (indirectBlock == 0) {
-                //get new block
-                indirectBlock = superBlock.getNextFreeBlock();
-                //error if we couldn't grab a new block
-                if (indirectBlock == ERROR) {
-                    entry.inode.finishWrite();
-                    return ERROR;
+            //a block allocated but not yet written reads as zeros, what a
+            //partial write leaves of it is zeroed in memory, not on disk
+            boolean unwritten = fresh || blockWriteSize < Disk.blockSize
+                    && superBlock.isUnwritten(blockIndex);
+            //the old contents of the block only matter if some of the file
+            //data in it is not overwritten, appends past the end of the file
+            //and whole block overwrites never read the block
+            int blockStart = blockNum * Disk.blockSize;
+            int validEnd = Math.min(Disk.blockSize, inode.length - blockStart);
+            boolean fill = !unwritten && (blockOffset > 0 && validEnd > 0
+                    || blockOffset + blockWriteSize < validEnd);
+            if (entry.direct && blockWriteSize == Disk.blockSize) {
+                if (directCount == 0) {
+                    directStart = bufferOffset;
                 }
-                //store pointer to block
-                SysLib.short2bytes(indirectBlock, indirectData, indirectIndex);
-                //save back to memory
-                errVal = SysLib.cwrite(indirectBlock, indirectData);
-                //failed to save back to memeory
-                if (errVal != SUCCESS) {
-                    entry.inode.finishWrite();
-                    return ERROR;
+                directBlocks[directCount++] = blockIndex;
+            } else if (unwritten && blockWriteSize < Disk.blockSize) {
+                //the whole block, so that a page the cache still holds
+                //from the block's last owner is overwritten too
+                byte[] zeroed = new byte[Disk.blockSize];
+                System.arraycopy(buffer, bufferOffset, zeroed, blockOffset,
+                        blockWriteSize);
+                if (SysLib.cwrite(blockIndex, zeroed, IoStats.DATA)
+                        != SUCCESS) {
+                    break;
                 }
+                written[writtenCount++] = blockIndex;
+            } else if (SysLib.cwrite(blockIndex, blockOffset, buffer,
+                    bufferOffset, blockWriteSize, IoStats.DATA, fill)
+                    != SUCCESS) {
+                break;
+            } else {
+                written[writtenCount++] = blockIndex;
             }
-            //read any latent data in block
-            errVal = SysLib.cread(indirectBlock, blockData);
-            //failed to read
-            if (errVal != SUCCESS) {
-                entry.inode.finishWrite();
-                return ERROR;
+            //increment by amount wrote
+            entry.seekPtr += blockWriteSize;
+            bufferOffset += blockWriteSize;
+            if (entry.seekPtr > inode.length) {
+                inode.length = entry.seekPtr;
             }
-            //updated traking variable
-            blockIndex = indirectBlock;
-        } else {
-            //are we indirect
-            if (blockNum + blockCount >= entry.inode.direct.length)//yes 
-            {
-                //do we have valid indirect pointer block
-                if (entry.inode.indirect == -1) {
-                    //if not get a new one
-                    entry.inode.indirect = superBlock.getNextFreeBlock();
-                }
-                //error on loading/allocating indirect pointer block
-                if (entry.inode.indirect == -1) {
-                    entry.inode.finishWrite();
-                    return ERROR;
+        }
+        if (directCount > 0) {
+            byte[][] directBuffers = new byte[directCount][];
+            int[] directOffsets = new int[directCount];
+            for (int i = 0; i < directCount; i++) {
+                directBuffers[i] = buffer;
+                directOffsets[i] = directStart + i * Disk.blockSize;
+            }
+            if (SysLib.directwrite(Arrays.copyOf(directBlocks, directCount),
+                    directBuffers, directOffsets) != SUCCESS) {
+                //nothing from the first whole block on counts as written
+                entry.seekPtr -= bufferOffset - directStart;
+                bufferOffset = directStart;
+                inode.length = Math.max(lengthBefore, entry.seekPtr);
+            } else {
+                System.arraycopy(directBlocks, 0, written, writtenCount,
+                        directCount);
+                writtenCount += directCount;
+            }
+        }
+        superBlock.markWritten(written, 0, writtenCount);
+        //give back the blocks the write stopped short of using
+        superBlock.returnBlocks(newBlocks, nextNew,
+                newBlocks.length - nextNew);
+        //write back the bitmap blocks the allocations changed, once
+        superBlock.syncBitmap();
+        //MR. Burns: RELEASE THE HOUNDS
+        inode.finishWrite();
+        //return the total amount of data we wrote, error if we got nowhere
+        return (bufferOffset < writeSize) ? ERROR : writeSize;
+    }
+    /**
+     * Allocates every block a write to the blocks first to last of a file
+     * needs with one call to the allocator: the data blocks not there yet,
+     * and the pointer blocks the file does not have for them. They follow
+     * the file's block before first on disk where they can
+     * @param pointers of the file
+     * @param first the first block of the file written
+     * @param last the last block of the file written
+     * @return the new blocks in the order the write takes them, fewer than
+     * needed if the disk is full
+     */
+    private int[] allocateFor(Pointers pointers, int first, int last) {
+        int count = pointers.missing(first, last);
+        for (int blockNum = first; blockNum <= last; blockNum++) {
+            if (pointers.blockOf(blockNum, true) == -1) {
+                count++;
+            }
+        }
+        int previous = (first > 0) ? pointers.blockOf(first - 1, true) : -1;
+        return superBlock.allocateBlocks(
+                (previous == -1) ? -1 : previous + 1, count);
+    }
+    /**
+     * The pointer blocks of a file that one read or write goes through,
+     * each read from the cache once: the indirect block and, in the wide
+     * format, the double indirect block and the blocks of pointers it
+     * points to, one for every pointersPerBlock() blocks of the file
+     */
+    private static class Pointers {
+        /**
+         * the file
+         */
+        private final Inode inode;
+        /**
+         * the indirect block, null until read
+         */
+        private byte[] indirect;
+        /**
+         * the double indirect block, null until read
+         */
+        private byte[] doubleIndirect;
+        /**
+         * the blocks below the double indirect block read so far
+         */
+        private byte[][] below;
+        /**
+         * a pointer block could not be read
+         */
+        private boolean failed;
+
+        /**
+         * @param inode the file
+         */
+        Pointers(Inode inode) {
+            this.inode = inode;
+        }
+        /**
+         * @param blockNum a block of the file
+         * @param load whether to read the pointer block it needs if it has
+         * not been read yet
+         * @return where the block is on disk, -1 if it has not been
+         * allocated or its pointer block is not at hand
+         */
+        int blockOf(int blockNum, boolean load) {
+            if (blockNum < inode.direct.length) {
+                return inode.direct[blockNum];
+            }
+            byte[] pointerData = pointerData(blockNum, load);
+            if (pointerData == null) {
+                return -1;
+            }
+            //a pointer of 0 has never been allocated
+            int block = Inode.getPointer(pointerData, indexOf(blockNum));
+            return (block <= 0) ? -1 : block;
+        }
+        /**
+         * @param blockNum a block of the file past the direct ones
+         * @return the number of pointer blocks it needs that the file does
+         * not have, 0 to 2
+         */
+        int missing(int blockNum) {
+            if (blockNum < inode.direct.length) {
+                return 0;
+            }
+            if (blockNum < Inode.doubleIndirectStart()) {
+                return (inode.indirect == -1) ? 1 : 0;
+            }
+            if (inode.doubleIndirect == -1) {
+                return 2;
+            }
+            return (groupBlock(groupOf(blockNum)) <= 0) ? 1 : 0;
+        }
+        /**
+         * @param first the first of a number of blocks of the file
+         * @param last the last of them
+         * @return the number of pointer blocks they need that the file does
+         * not have
+         */
+        int missing(int first, int last) {
+            int count = (last >= inode.direct.length
+                    && first < Inode.doubleIndirectStart()
+                    && inode.indirect == -1) ? 1 : 0;
+            if (last >= Inode.doubleIndirectStart()) {
+                if (inode.doubleIndirect == -1) {
+                    count++;
                 }
-                //grab indirect pointer block
-                indirectData = new byte[Disk.blockSize];
-                errVal = SysLib.cread(entry.inode.indirect, indirectData);
-                //failed to load indirect pointer block
-                if (errVal != SUCCESS) {
-                    entry.inode.finishWrite();
-                    return ERROR;
+                int firstGroup = groupOf(Math.max(first,
+                        Inode.doubleIndirectStart()));
+                for (int g = firstGroup; g <= groupOf(last); g++) {
+                    if (inode.doubleIndirect == -1 || groupBlock(g) <= 0) {
+                        count++;
+                    }
                 }
             }
-            //if direct block is not there, get a new one
-            if (entry.inode.direct[blockNum] == -1) {
-                entry.inode.direct[blockNum] = superBlock.getNextFreeBlock();
+            return count;
+        }
+        /**
+         * Gives the file the pointer blocks a block of it needs, as counted
+         * by missing(), all zero
+         * @param blockNum the block of the file
+         * @param blocks holds the blocks allocated for the pointers
+         * @param from the index of the first of them in blocks
+         * @return success
+         */
+        boolean attach(int blockNum, int[] blocks, int from) {
+            byte[] empty = new byte[Disk.blockSize];
+            if (blockNum < Inode.doubleIndirectStart()) {
+                //a new pointer block is all zero, no need to read it
+                if (SysLib.cwrite(blocks[from], empty, IoStats.INDIRECT)
+                        != SUCCESS) {
+                    return false;
+                }
+                inode.indirect = blocks[from];
+                indirect = empty;
+                return true;
             }
-            //failed to load/allocate direct block
-            if (entry.inode.direct[blockNum] == -1) {
-                entry.inode.finishWrite();
-                return ERROR;
+            if (inode.doubleIndirect == -1) {
+                if (SysLib.cwrite(blocks[from], empty, IoStats.INDIRECT)
+                        != SUCCESS) {
+                    return false;
+                }
+                inode.doubleIndirect = blocks[from++];
+                doubleIndirect = empty;
+                empty = new byte[Disk.blockSize];
             }
-            //load direct block
-            errVal = SysLib.cread(entry.inode.direct[blockNum], blockData);
-            //failed to load block
-            if (errVal != SUCCESS) {
-                entry.inode.finishWrite();
-                return ERROR;
+            if (SysLib.cwrite(blocks[from], empty, IoStats.INDIRECT)
+                    != SUCCESS
+                    || !setPointer(inode.doubleIndirect, doubleIndirect,
+                            groupOf(blockNum), blocks[from])) {
+                return false;
             }
-            //update block index
-            blockIndex = entry.inode.direct[blockNum];
+            below()[groupOf(blockNum)] = empty;
+            return true;
         }
-        // Most simple version for small writes
-        if (blockCount == 1) 
-        {
-            //load preexisting data
-            System.arraycopy(buffer, 0,
-                    blockData, blockOffset,
-                    writeSize);
-            //write the whole block data to the block
-            errVal = SysLib.cwrite(blockIndex, blockData);
-            //failed to write
-            if (errVal != SUCCESS) {
-                entry.inode.finishWrite();
-                return ERROR;
+        /**
+         * Points a block of the file, whose pointer blocks it has, at a
+         * disk block
+         * @param blockNum the block of the file
+         * @param block the disk block
+         * @return success
+         */
+        boolean set(int blockNum, int block) {
+            if (blockNum < inode.direct.length) {
+                inode.direct[blockNum] = block;
+                return true;
             }
-            //updated by how much we wrote
-            entry.seekPtr += writeSize;
-            entry.inode.length += writeSize;
-        } 
-        else //multiball madness
-        {   
-            //NOTE: the first time we write in multiblock we ALWAYS need to 
-            //account for preexisting data, for all other writes, we don't
-            //get where to start in current block
-            int bufferOffset = Disk.blockSize - blockOffset;
-            //copy data
-            System.arraycopy(buffer, 0,
-                    blockData, blockOffset,
-                    bufferOffset);
-            //write it all back
-            errVal = SysLib.cwrite(blockIndex, blockData);
-            //failed to write
-            if (errVal != SUCCESS) {
-                entry.inode.finishWrite();
-                return ERROR;
+            int pointerBlock = (blockNum < Inode.doubleIndirectStart())
+                    ? inode.indirect : groupBlock(groupOf(blockNum));
+            return setPointer(pointerBlock, pointerData(blockNum, true),
+                    indexOf(blockNum), block);
+        }
+        /**
+         * update just one pointer in a cached pointer block
+         * @param pointerBlock where the pointers are on disk
+         * @param pointerData the pointers
+         * @param index which of them
+         * @param block what it points at
+         * @return success, the pointer is left as it was on error
+         */
+        private static boolean setPointer(int pointerBlock,
+                byte[] pointerData, int index, int block) {
+            Inode.setPointer(block, pointerData, index);
+            int pointerOffset = Inode.pointerOffset(index);
+            if (SysLib.cwrite(pointerBlock, pointerOffset, pointerData,
+                    pointerOffset, Inode.pointerSize(), IoStats.INDIRECT,
+                    true) != SUCCESS) {
+                Inode.setPointer(0, pointerData, index);
+                return false;
             }
-            //updated pointers by how much we read
-            entry.seekPtr += bufferOffset;
-            entry.inode.length += bufferOffset;
-            //loop threw the number of blocks we have to write
-            for (blockNum++; blockNum <= lastBlock; blockNum++) {
-                
-                // Bound the individual block read size by the size of the block itself
-                int blockWriteSize = (writeSize - bufferOffset > Disk.blockSize)
-                        ? Disk.blockSize : writeSize - bufferOffset;
-                //NOTE:for simplisity check to see if we are a direct/indirect
-                //block each loop, it can change from direct to indirect,
-                //not vise-versa
-                
-                // Are we accessing an indirect block
-                if (blockNum >= entry.inode.direct.length) 
-                {
-                    //get offset of the indirect block in the indirect pointer block
-                    short indirectIndex = (short) ((blockNum - entry.inode.direct.length) * 2);
-                    //read from the indirect block to get the block # to write to
-                    blockIndex = SysLib.bytes2short(indirectData, indirectIndex);
-                    //if we are 0, we need to allocate a new block
-                    if (blockIndex == 0) {
-                        //get new block
-                        blockIndex = superBlock.getNextFreeBlock();
-                        //failed to allocate new block
-                        if (blockIndex == ERROR) {
-                            entry.inode.finishWrite();
-                            return ERROR;
-                        }
-                        //store new pointer to new indirect block into indirect
-                        //pointer block
-                        SysLib.short2bytes(blockIndex, indirectData, indirectIndex);
-                        //save new indirect pointer block
-                        errVal = SysLib.cwrite(entry.inode.indirect, indirectData);
-                        //failed to save back
-                        if (errVal != SUCCESS) {
-                            entry.inode.finishWrite();
-                            return ERROR;
-                        }
-                    }
-                } else // Nope, we are a direct block
-                {
-                    //load direct block pointer
-                    blockIndex = entry.inode.direct[blockNum];
-                    //if we are -1 we need to allocate a new direct block
-                    if (blockIndex == -1) {
-                        //get new alloc
-                        blockIndex = superBlock.getNextFreeBlock();
-                        //error in alloc
-                        if (blockIndex == -1) {
-                            entry.inode.finishWrite();
-                            return ERROR;
-                        }
-                        //save new direct pointer to the inode
-                        entry.inode.direct[blockNum] = blockIndex;
-                    }
+            return true;
+        }
+        /**
+         * @param group a pointer of the double indirect block
+         * @return where the block of pointers it leads to is on disk, 0 or
+         * less if there is none
+         */
+        private int groupBlock(int group) {
+            if (doubleIndirect == null) {
+                doubleIndirect = read(inode.doubleIndirect);
+                if (doubleIndirect == null) {
+                    return -1;
                 }
-                //
-                errVal = SysLib.cread(blockIndex, blockData);
-
-                if (errVal != SUCCESS) {
-                    entry.inode.finishWrite();
-                    return ERROR;
+            }
+            return Inode.getPointer(doubleIndirect, group);
+        }
+        /**
+         * @param blockNum a block of the file past the direct ones
+         * @param load whether to read the block if it has not been yet
+         * @return the pointer block holding its pointer, null if there is
+         * none or it was not read
+         */
+        private byte[] pointerData(int blockNum, boolean load) {
+            if (blockNum < Inode.doubleIndirectStart()) {
+                if (indirect == null && load && inode.indirect > 0) {
+                    indirect = read(inode.indirect);
                 }
-
-                System.arraycopy(buffer, bufferOffset,
-                        blockData, 0,
-                        blockWriteSize);
-                //save back to disk
-                errVal = SysLib.cwrite(blockIndex, blockData);
-                //failed to write back
-                if (errVal != SUCCESS) {
-                    entry.inode.finishWrite();
-                    return ERROR;
+                return indirect;
+            }
+            if (inode.doubleIndirect <= 0
+                    || !load && doubleIndirect == null) {
+                return null;
+            }
+            int group = groupOf(blockNum);
+            if (below()[group] == null && load) {
+                int pointerBlock = groupBlock(group);
+                if (pointerBlock > 0) {
+                    below[group] = read(pointerBlock);
                 }
-                //increment by amount wrote
-                entry.seekPtr += blockWriteSize;
-                entry.inode.length += blockWriteSize;
-                bufferOffset += blockWriteSize;
             }
-
+            return below[group];
+        }
+        /**
+         * @return the blocks below the double indirect block read so far
+         */
+        private byte[][] below() {
+            if (below == null) {
+                below = new byte[Inode.pointersPerBlock()][];
+            }
+            return below;
+        }
+        /**
+         * @param blockNum a block of the file past the direct ones
+         * @return where its pointer is in its pointer block
+         */
+        private int indexOf(int blockNum) {
+            return (blockNum < Inode.doubleIndirectStart())
+                    ? blockNum - inode.direct.length
+                    : (blockNum - Inode.doubleIndirectStart())
+                            % Inode.pointersPerBlock();
+        }
+        /**
+         * @param blockNum a block of the file in the double indirect range
+         * @return which pointer of the double indirect block leads to it
+         */
+        private static int groupOf(int blockNum) {
+            return (blockNum - Inode.doubleIndirectStart())
+                    / Inode.pointersPerBlock();
+        }
+        /**
+         * @param block a pointer block
+         * @return its contents, null on error
+         */
+        private byte[] read(int block) {
+            byte[] data = new byte[Disk.blockSize];
+            if (SysLib.cread(block, data, IoStats.INDIRECT) != SUCCESS) {
+                failed = true;
+                return null;
+            }
+            return data;
+        }
+    }
+    /**
+     * Pins the indirect block of an open file in the cache, so that reading
+     * or writing past the direct blocks does not have to read it again
+     * after a scan of other files
+     * @param entry the open file
+     */
+    private void pinIndirect(FileTableEntry entry) {
+        int indirect = entry.inode.indirect;
+        if (indirect == -1 || indirect == entry.pinnedIndirect) {
+            return;
+        }
+        unpinIndirect(entry);
+        SysLib.pin(indirect);
+        entry.pinnedIndirect = indirect;
+    }
+    /**
+     * Lets go of the indirect block pinned by pinIndirect
+     * @param entry the open file
+     */
+    private void unpinIndirect(FileTableEntry entry) {
+        if (entry.pinnedIndirect != -1) {
+            SysLib.unpin(entry.pinnedIndirect);
+            entry.pinnedIndirect = -1;
         }
-        //MR. Burns: RELEASE THE HOUNDS
-        entry.inode.finishWrite();
-        //return the total amount of data we wrote
-        return writeSize;
     }
     /**
      * get the size of a file
@@ -779,11 +1120,12 @@ public class FileSystem {
         int indirectCount = 0;
         if (rootInode.indirect > DIR_INODE) {
             indirect = new byte[Disk.blockSize];
-            errVal = SysLib.cread(rootInode.indirect, indirect);
+            errVal = SysLib.cread(rootInode.indirect, indirect,
+                                  IoStats.INDIRECT);
 
             if (errVal == 0) {
-                for (int offset = 0; offset < Disk.blockSize; offset += 4) {
-                    if (SysLib.bytes2int(indirect, offset) <= DIR_INODE) {
+                for (int i = 0; i < Inode.pointersPerBlock(); i++) {
+                    if (Inode.getPointer(indirect, i) <= DIR_INODE) {
                         break;
                     }
 
@@ -812,7 +1154,7 @@ public class FileSystem {
 
         if (indirect != null) {
             for (int i = 0; i < indirectCount; i++) {
-                errVal = SysLib.cread(indirect[SysLib.bytes2int(indirect, i * 4)], blockData);
+                errVal = SysLib.cread(Inode.getPointer(indirect, i), blockData);
 
                 if (errVal < SUCCESS) {
                     return null;
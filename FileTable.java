@@ -24,10 +24,14 @@ public class FileTable {
     /**
      * allocate a new file in our system
      * @param filename the to be files name
-     * @param mode the to be mode the file is created in
+     * @param mode the to be mode the file is created in, with
+     * FileTableEntry.DIRECT appended for direct I/O
      * @return the inumber or error
      */
     public FileTableEntry falloc(String filename, String mode) {
+        //the direct flag is kept apart from the mode itself
+        boolean direct = FileTableEntry.isDirect(mode);
+        mode = FileTableEntry.baseMode(mode);
         //var to keep track if the allocated file has already been allocated
         boolean isNewEntry = false;
 
@@ -99,7 +103,7 @@ public class FileTable {
 
         inode.toDisk(iNumber);
         //create a new file entry for external use
-        FileTableEntry entry = new FileTableEntry(inode, iNumber, mode);
+        FileTableEntry entry = new FileTableEntry(inode, iNumber, mode, direct);
         entry.count = 1;
 
         if (isNewEntry) {
@@ -26,6 +26,35 @@ public class FileTableEntry {
      * cannot be changed until closed then reopened
      */
     public final String mode;
+    /**
+     * whether whole data blocks move straight between disk and the caller,
+     * past the cache, asked for by appending DIRECT to the mode
+     */
+    public final boolean direct;
+    /**
+     * suffix of an open mode for direct I/O, as in "rd" or "w+d"
+     */
+    public static final String DIRECT = "d";
+    /**
+     * where the last read ended, a read starting here is sequential
+     */
+    public int sequentialEnd;
+    /**
+     * how many blocks to read ahead of a sequential reader, 0 for none
+     */
+    public int readAhead;
+    /**
+     * the first block of the file not yet read ahead
+     */
+    public int readAheadEnd;
+    /**
+     * whether the indirect block has been read ahead
+     */
+    public boolean indirectReadAhead;
+    /**
+     * the indirect block this entry keeps pinned in the cache, -1 for none
+     */
+    public int pinnedIndirect;
     /**
      * Create the entry based on minimal information
      * @param i the actual node to store
@@ -33,6 +62,16 @@ public class FileTableEntry {
      * @param m the mode we are open in
      */
     FileTableEntry ( Inode i, short inumber, String m ) {
+        this(i, inumber, m, false);
+    }
+    /**
+     * Create the entry of a file open for direct I/O or not
+     * @param i the actual node to store
+     * @param inumber the number of the node
+     * @param m the mode we are open in, without DIRECT
+     * @param d whether data blocks bypass the cache
+     */
+    FileTableEntry ( Inode i, short inumber, String m, boolean d ) {
         //set the seekerptr to the start or the end of a file based on the mode
         //see definition of mode  above
 	seekPtr = m.equalsIgnoreCase("a") ?  i.length : 0;
@@ -41,6 +80,28 @@ public class FileTableEntry {
         //there is someone with us open
         count = 1;
         mode = m;
+        direct = d;
+        //a first read from where we were opened counts as sequential
+        sequentialEnd = seekPtr;
+        readAhead = 0;
+        readAheadEnd = 0;
+        indirectReadAhead = false;
+        pinnedIndirect = -1;
 
     }
+    /**
+     * @param m an open mode
+     * @return true if it asks for direct I/O
+     */
+    public static boolean isDirect(String m) {
+        return m.length() > 1 && m.endsWith(DIRECT);
+    }
+    /**
+     * @param m an open mode
+     * @return the mode without DIRECT, interned like the literals it is
+     * compared with
+     */
+    public static String baseMode(String m) {
+        return (isDirect(m) ? m.substring(0, m.length() - 1) : m).intern();
+    }
 }
@@ -21,18 +21,19 @@ public class Inode
      */
     public static final short MARKED_FOR_DEATH = 0x04;
     /**
-     * Maximum amount of data that can be stored in a file
+     * Maximum amount of data that can be stored in a file of the narrow
+     * format, see maxFileSize() for the format of the mounted disk
      */
     public static final int MAX_FILE_SIZE = 136704;
     
     /**
-     * The size of each inode
+     * The size of each inode with 16 bit block pointers (narrow format)
      */
     private final static int iNodeSize = 32;       
     /**
-     * the number of inodes that can be stored in each block
+     * The size of each inode with 32 bit block pointers (wide format)
      */
-    private final static short iNodesPerBlock = 16;
+    private final static int wideINodeSize = 64;
     /**
      * the number of direct pointers to block data
      */
@@ -56,13 +57,108 @@ public class Inode
     /**
      * array of direct pointers to data blocks
      */
-    public short direct[] = new short[directSize]; 
+    public int direct[] = new int[directSize]; 
     /**
      * pointer to the block of data containing pointers to blocks of data
      */
-    public short indirect;
+    public int indirect;
+    /**
+     * pointer to a block of pointers to blocks of pointers to blocks of
+     * data, only in the wide format, where the indirect block holds half
+     * as many pointers
+     */
+    public int doubleIndirect;
 
 
+    /**
+     * @return the size of an inode in the format of the mounted disk
+     */
+    private static int inodeSize() {
+        return SuperBlock.isWide() ? wideINodeSize : iNodeSize;
+    }
+    /**
+     * @return the number of inodes that can be stored in each block
+     */
+    public static int inodesPerBlock() {
+        return Disk.blockSize / inodeSize();
+    }
+    /**
+     * @return the size of a block pointer on disk, 2 or 4 bytes
+     */
+    public static int pointerSize() {
+        return SuperBlock.isWide() ? 4 : 2;
+    }
+    /**
+     * @return the number of block pointers an indirect block holds
+     */
+    public static int pointersPerBlock() {
+        return Disk.blockSize / pointerSize();
+    }
+    /**
+     * @return the first block of a file found through the double indirect
+     * block
+     */
+    public static int doubleIndirectStart() {
+        return directSize + pointersPerBlock();
+    }
+    /**
+     * @return the maximum amount of data a file can hold on the mounted disk
+     */
+    public static int maxFileSize() {
+        int blocks = doubleIndirectStart();
+        if (SuperBlock.isWide()) {
+            blocks += pointersPerBlock() * pointersPerBlock();
+        }
+        return blocks * Disk.blockSize;
+    }
+    /**
+     * read a block pointer stored at a byte offset
+     * @param block the block holding the pointer
+     * @param offset byte offset of the pointer in the block
+     * @return the block number, -1 for none
+     */
+    private static int readPointer(byte[] block, int offset) {
+        return SuperBlock.isWide() ? SysLib.bytes2int(block, offset)
+                : SysLib.bytes2short(block, offset);
+    }
+    /**
+     * store a block pointer at a byte offset
+     * @param pointer the block number, -1 for none
+     * @param block the block holding the pointer
+     * @param offset byte offset of the pointer in the block
+     */
+    private static void writePointer(int pointer, byte[] block, int offset) {
+        if (SuperBlock.isWide()) {
+            SysLib.int2bytes(pointer, block, offset);
+        } else {
+            SysLib.short2bytes((short) pointer, block, offset);
+        }
+    }
+    /**
+     * get an entry of an indirect block
+     * @param block the indirect block
+     * @param index which of its pointers
+     * @return the block number, 0 if never allocated
+     */
+    public static int getPointer(byte[] block, int index) {
+        return readPointer(block, index * pointerSize());
+    }
+    /**
+     * @param index which pointer of an indirect block
+     * @return where the pointer is in the block
+     */
+    public static int pointerOffset(int index) {
+        return index * pointerSize();
+    }
+    /**
+     * set an entry of an indirect block
+     * @param pointer the block number
+     * @param block the indirect block
+     * @param index which of its pointers
+     */
+    public static void setPointer(int pointer, byte[] block, int index) {
+        writePointer(pointer, block, index * pointerSize());
+    }
     /**
      * create an inode with 0'd out information
      */
@@ -81,7 +177,7 @@ public class Inode
             return;
         }
         //the block the inode can be found in
-        short blockNum = (short) (iNumber / iNodesPerBlock + 1);
+        int blockNum = iNumber / inodesPerBlock() + 1;
 
         if (blockNum > SuperBlock.totalBlocks) {
             invalidate();
@@ -89,13 +185,14 @@ public class Inode
         }
 
         byte[] block = new byte[Disk.blockSize];
-        //read the containing block
-        if (SysLib.rawread(blockNum, block) < 0) {
+        //read the containing block, through the cache where inode blocks
+        //have a share of the pages kept from file data
+        if (SysLib.cread(blockNum, block, IoStats.INODE) < 0) {
             invalidate();
             return;
         }
         //the offset the inode can be found in memory
-        int offset = iNumber % iNodesPerBlock * iNodeSize;
+        int offset = iNumber % inodesPerBlock() * inodeSize();
         //load in the information of the inode
         length = SysLib.bytes2int(block, offset);
         count = SysLib.bytes2short(block, offset + 4);
@@ -103,10 +200,16 @@ public class Inode
         flag = block[offset + 7];
         //load in the direct pointers
         for (int i = 0; i < directSize; i++) {
-            direct[i] = SysLib.bytes2short(block, offset + 8 + i * 2);
+            direct[i] = readPointer(block, offset + 8 + i * pointerSize());
         }
         //load in the pointer to indirect data
-        indirect = SysLib.bytes2short(block, offset + 30);
+        indirect = readPointer(block, offset + 8 + directSize * pointerSize());
+        doubleIndirect = SuperBlock.isWide()
+                ? readPointer(block, offset + 8 + (directSize + 1) * 4) : -1;
+        //wide images from before the double indirect block have 0 here
+        if (doubleIndirect == 0) {
+            doubleIndirect = -1;
+        }
     }
     /**
      * It is the caller's job to ensure that there are no data races when calling
@@ -126,7 +229,7 @@ public class Inode
             return -1;
         }
         //the block that contains the inode
-        short blockNum = (short) (iNumber / iNodesPerBlock + 1);
+        int blockNum = iNumber / inodesPerBlock() + 1;
 
         //validity check
         if (blockNum > SuperBlock.totalBlocks) {
@@ -134,22 +237,13 @@ public class Inode
         }
 
         byte[] block = new byte[Disk.blockSize];
-        //read in the block that contains the inode so we can write to it
-        if (SysLib.rawread(blockNum, block) < 0) {
-            return -1;
-        }
+        toBlockData(block, iNumber);
         //the offset for the inode
-        int offset = iNumber % iNodesPerBlock * iNodeSize;
-        SysLib.int2bytes(length, block, offset);
-        SysLib.short2bytes(count, block, offset + 4);
-        block[offset + 6] = flag;
-        block[offset + 7] = readerCount;
-        for (int i = 0; i < directSize; i++) {
-            SysLib.short2bytes(direct[i], block, offset + 8 + i * 2);
-        }
-        SysLib.short2bytes(indirect, block, offset + 30);
-        //write the block back to memory then return its success/error
-        return SysLib.rawwrite(blockNum, block);
+        int offset = iNumber % inodesPerBlock() * inodeSize();
+        //write only this inode into the cached block, the cache reads the
+        //rest of it in if it has to, then return its success/error
+        return SysLib.cwrite(blockNum, offset, block, offset, inodeSize(),
+                IoStats.INODE, true);
     }
     /**
      * get the inode and its block to a byte[]
@@ -163,21 +257,24 @@ public class Inode
             return -1;
         }
         //block containing the inode
-        short blockNum = (short) (iNumber / iNodesPerBlock + 1);
+        int blockNum = iNumber / inodesPerBlock() + 1;
         //validity check
         if (blockNum > SuperBlock.totalBlocks) {
             return -1;
         }
         //write inode info to data[]
-        int offset = iNumber % iNodesPerBlock * iNodeSize;
+        int offset = iNumber % inodesPerBlock() * inodeSize();
         SysLib.int2bytes(length, data, offset);
         SysLib.short2bytes(count, data, offset + 4);
         data[offset + 6] = flag;
         data[offset + 7] = readerCount;
         for (int i = 0; i < directSize; i++) {
-            SysLib.short2bytes(direct[i], data, offset + 8 + i * 2);
+            writePointer(direct[i], data, offset + 8 + i * pointerSize());
+        }
+        writePointer(indirect, data, offset + 8 + directSize * pointerSize());
+        if (SuperBlock.isWide()) {
+            writePointer(doubleIndirect, data, offset + 8 + (directSize + 1) * 4);
         }
-        SysLib.short2bytes(indirect, data, offset + 30);
         //return success
         return 0;
     }
@@ -192,6 +289,7 @@ public class Inode
             direct[i] = -1;
         }
         indirect = -1;
+        doubleIndirect = -1;
     }
     /**
      * wait until everyone is done writing
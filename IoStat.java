@@ -0,0 +1,48 @@
+// Prints the cache and disk statistics since boot: totals first, then a
+// row per block class with its hits, misses, hit rate, evictions, dirty
+// write-backs and the mean and 99th percentile latency of its misses.
+//   l IoStat
+public class IoStat extends Thread {
+  public IoStat( String args[] ) {
+  }
+
+  public IoStat( ) {
+  }
+
+  public void run( ) {
+    IoStats stats = new IoStats( );
+    SysLib.stats( stats );
+    SysLib.cout( "IoStat: " + stats.cacheBlocks + " block " + stats.cacheStore
+                 + " " + stats.cachePolicy + " cache hits "
+                 + stats.cacheHits + ", misses " + stats.cacheMisses
+                 + ", hit rate " + rate( stats.cacheHits, stats.cacheMisses )
+                 + "%, evictions " + stats.cacheEvictions + ", write-backs "
+                 + stats.cacheWriteBacks + ", syncs " + stats.syncs + "\n" );
+    SysLib.cout( "IoStat: miss latency mean " + stats.missLatency
+                 + " us, p99 " + stats.missLatencyP99 + " us, read ahead "
+                 + stats.prefetched + ", flushed in background "
+                 + stats.flushed + ", direct I/O read " + stats.bypassRead
+                 + " written " + stats.bypassWritten + "\n" );
+    SysLib.cout( "IoStat: metadata pages " + stats.metadataBlocks
+                 + " of " + stats.metadataReserve + " reserved, pinned "
+                 + stats.pinnedBlocks + "\n" );
+    SysLib.cout( "IoStat: class       hits   misses  rate  evicted  "
+                 + "written  mean us   p99 us\n" );
+    for ( int c = 0; c < IoStats.CLASSES; c++ )
+      SysLib.cout( String.format(
+        "IoStat: %-10s %6d %8d %4d%% %8d %8d %8d %8d\n",
+        IoStats.CLASS_NAMES[c], stats.classHits[c], stats.classMisses[c],
+        rate( stats.classHits[c], stats.classMisses[c] ),
+        stats.classEvictions[c], stats.classWriteBacks[c],
+        stats.classMissLatency[c], stats.classMissLatencyP99[c] ) );
+    SysLib.cout( "IoStat: disk commands " + stats.diskCommands
+                 + ", blocks read " + stats.blocksRead + ", written "
+                 + stats.blocksWritten + ", seek time " + stats.seekTime
+                 + " ms\n" );
+    SysLib.exit( );
+  }
+
+  private static long rate( long hits, long misses ) {
+    return ( hits + misses > 0 ) ? hits * 100 / ( hits + misses ) : 0;
+  }
+}
@@ -0,0 +1,50 @@
+// Counters of the block I/O stack since boot, filled in by SysLib.stats( ).
+// The cache counters are also kept by the class of block they concern,
+// indexed by SUPERBLOCK, INODE, INDIRECT, DATA and BITMAP.  A block is of
+// the class the file system last read or wrote it as; block 0 is the
+// superblock and a block nobody gave a class is counted as data.
+public class IoStats {
+    public static final int SUPERBLOCK = 0;
+    public static final int INODE = 1;
+    public static final int INDIRECT = 2;
+    public static final int DATA = 3;
+    public static final int BITMAP = 4;     // the free block bitmap
+    public static final int CLASSES = 5;
+    public static final int UNCLASSIFIED = -1; // cread or cwrite with no class
+    public static final String CLASS_NAMES[] = {
+	"superblock", "inode", "indirect", "data", "bitmap" };
+
+    public String cachePolicy;  // replacement policy the cache runs
+    public String cacheStore;   // where it keeps its pages, heap or direct
+    public int cacheBlocks;     // how many pages it has
+    public int pinnedBlocks;    // pages kept by a pin right now
+    public int metadataBlocks;  // pages holding metadata right now
+    public int metadataReserve; // pages data blocks cannot take from them
+    public long cacheHits;      // cread and cwrite blocks found in the cache
+    public long cacheMisses;    // and those that were not
+    public long cacheEvictions; // cached blocks dropped to make room
+    public long cacheWriteBacks;// dirty pages written back, for any reason
+    public long dirtyEvictions; // victims written back by the thread evicting
+    public long writeBackWait;  // ms those threads spent writing them back
+    public long flushed;        // pages the background flusher wrote back
+    public long prefetched;     // pages read ahead of sequential readers
+    public long syncs;          // csync and cflush calls
+    public long syncTime;       // ms spent in them
+    public long gapFilled;      // clean blocks they wrote to join dirty runs
+    public long bypassRead;     // blocks direct reads took from disk
+    public long bypassWritten;  // and direct writes wrote past the cache
+    public long missLatency;    // mean us a miss waited for its block read
+    public long missLatencyP99; // and the 99th percentile, rounded up
+    public long classHits[] = new long[ CLASSES ];
+    public long classMisses[] = new long[ CLASSES ];
+    public long classEvictions[] = new long[ CLASSES ];
+    public long classWriteBacks[] = new long[ CLASSES ];
+    public long classMissLatency[] = new long[ CLASSES ];
+    public long classMissLatencyP99[] = new long[ CLASSES ];
+    public int diskBlocks;      // blocks the disk holds
+    public long diskCommands;   // commands the disk served
+    public long blocksRead;     // blocks it moved
+    public long blocksWritten;
+    public long seekTime;       // simulated ms spent serving them, summed
+                                // over every member of a striped volume
+}
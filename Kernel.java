@@ -36,6 +36,27 @@ public class Kernel
    public final static int FORMAT  = 18; // SysLib.format( int files )
    public final static int DELETE  = 19; // SysLib.delete( String fileName )
 
+   // Scatter/gather block I/O, args = { int blks[], byte b[][], int offs[] }
+   public final static int RAWREADV  = 20; // SysLib.rawread( blks, b, offs )
+   public final static int RAWWRITEV = 21; // SysLib.rawwrite( blks, b, offs )
+   public final static int CREADV    = 22; // SysLib.cread( blks, b, offs )
+   public final static int STATS     = 23; // SysLib.stats( IoStats stats )
+   public final static int CPREFETCH = 24; // SysLib.prefetch( int blks[] )
+   // cread and cwrite of a block of class IoStats.SUPERBLOCK, INODE, ...,
+   // args = { byte b[], Integer blockClass }
+   public final static int CREADCLASS  = 25; // SysLib.cread( blk, b, class )
+   public final static int CWRITECLASS = 26; // SysLib.cwrite( blk, b, class )
+   // cwrite of part of a block, args = { Integer offset, byte b[],
+   // Integer bOffset, Integer length, Integer blockClass, Boolean fill }
+   public final static int CWRITEPART  = 27; // SysLib.cwrite( blk, off, ... )
+   // keep a block in the cache until unpinned
+   public final static int CPIN   = 28; // SysLib.pin( int blk )
+   public final static int CUNPIN = 29; // SysLib.unpin( int blk )
+   // transfer blocks between disk and the caller without caching them,
+   // args = { int blks[], byte b[][], int offsets[] }
+   public final static int CREADDIRECT  = 30; // SysLib.directread( ... )
+   public final static int CWRITEDIRECT = 31; // SysLib.directwrite( ... )
+
    // Predefined file descriptors
    public final static int STDIN  = 0;
    public final static int STDOUT = 1;
@@ -50,13 +71,39 @@ public class Kernel
    private static Disk disk;
    private static Cache cache;
    private static FileSystem fs;
+   private static DiskTrace trace;      // null unless threadOS.trace is set
 
    // Synchronized Queues
    private static SyncQueue waitQueue;  // for threads to wait for their child
    private static SyncQueue ioQueue;    // I/O queue
 
    private final static int COND_DISK_REQ = 1; // wait condition 
-   private final static int COND_DISK_FIN = 2; // wait condition
+
+   // Boot options, given as java -DthreadOS.disk=mapped Boot
+   private final static String DISK_BACKEND = "threadOS.disk";
+   private final static String DISK_SCHEDULER = "threadOS.disk.scheduler";
+   private final static String DISK_BLOCKS = "threadOS.disk.blocks";
+   private final static String DISK_MODEL = "threadOS.disk.model";
+   private final static String DISK_TRACK_SIZE = "threadOS.disk.trackSize";
+   private final static String DISK_TRANSFER_TIME
+      = "threadOS.disk.transferTime";
+   private final static String DISK_DELAY_PER_TRACK
+      = "threadOS.disk.delayPerTrack";
+   private final static String DISK_STREAM_TIME = "threadOS.disk.streamTime";
+   private final static String DISK_RESIDENT = "threadOS.disk.resident";
+   private final static String TRACE = "threadOS.trace";
+   private final static String CACHE_BLOCKS = "threadOS.cache.blocks";
+   private final static String CACHE_STORE = "threadOS.cache.store";
+   private final static String CACHE_POLICY = "threadOS.cache.policy";
+   private final static String CACHE_DIRTY_RATIO = "threadOS.cache.dirtyRatio";
+   private final static String CACHE_DIRTY_AGE = "threadOS.cache.dirtyAge";
+   private final static String CACHE_FLUSH_INTERVAL
+      = "threadOS.cache.flushInterval";
+   private final static String CACHE_METADATA_RESERVE
+      = "threadOS.cache.metadataReserve";
+   private final static String DISK_MEMBERS = "threadOS.disk.members";
+   private final static String DISK_STRIPE_WIDTH
+      = "threadOS.disk.stripeWidth";
 
    // Standard input
    private static BufferedReader input
@@ -65,8 +112,17 @@ public class Kernel
    // The heart of Kernel
    public static int interrupt( int irq, int cmd, int param, Object args ) {
       TCB myTcb;
+      Disk.Request request; // a raw request queued in the disk
       switch( irq ) {
          case INTERRUPT_SOFTWARE: // System calls
+            // record block I/O, then serve it as usual
+            if ( trace != null && trace.enter( cmd, param, args, myTid( ) ) ) {
+               try {
+                  return interrupt( irq, cmd, param, args );
+               } finally {
+                  trace.leave( );
+               }
+            }
             switch( cmd ) { 
                case BOOT:
                   // instantiate and start a scheduler
@@ -74,17 +130,39 @@ public class Kernel
                   scheduler.start( );
 
                   // instantiate and start a disk
-                  disk = new Disk( 1000 );
+                  disk = newDisk( Integer.getInteger( DISK_BLOCKS, 1000 ) );
+                  setDiskLatency( );
+                  disk.setScheduler( DiskScheduler.create(
+                     System.getProperty( DISK_SCHEDULER, "fcfs" ) ) );
                   disk.start( );
 
                   // instantiate a cache memory
-                  cache = new Cache( disk.blockSize, 10 );
+                  cache = new Cache( disk.blockSize,
+                     Math.max( 1, Integer.getInteger( CACHE_BLOCKS, 10 ) ),
+                     System.getProperty( CACHE_POLICY, "clock" ),
+                     System.getProperty( CACHE_STORE, "heap" ) );
+                  // percent of the cache data blocks cannot take from
+                  // superblock, inode and indirect blocks
+                  cache.reserveMetadata(
+                     Integer.getInteger( CACHE_METADATA_RESERVE, 25 ) );
+                  startFlusher( );
 
                   // instantiate synchronized queues
                   ioQueue = new SyncQueue( );
                   waitQueue = new SyncQueue( scheduler.getMaxThreads( ) );
 				  
 				  fs = new FileSystem(disk, scheduler);
+
+                  // record block I/O with -DthreadOS.trace=file
+                  String traceFile = System.getProperty( TRACE );
+                  if ( traceFile != null ) {
+                     try {
+                        trace = new DiskTrace( traceFile );
+                     } catch ( IOException e ) {
+                        System.err.println( "threadOS: cannot trace to "
+                                            + traceFile + ", " + e );
+                     }
+                  }
                   return OK;
                case EXEC:
                   return sysExec( ( String[] )args );
@@ -112,23 +190,19 @@ public class Kernel
                   scheduler.sleepThread( param ); // param = milliseconds
                   return OK;
                case RAWREAD: // read a block of data from disk
-                  while ( disk.read( param, ( byte[] )args ) == false )
+                  while ( ( request = disk.read( param, ( byte[] )args ) )
+                          == null )
                      ioQueue.enqueueAndSleep( COND_DISK_REQ );
-                  while ( disk.testAndResetReady( ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_FIN );
-                  return OK;
+                  return waitForDisk( request );
                case RAWWRITE: // write a block of data to disk
-                  while ( disk.write( param, ( byte[] )args ) == false )
+                  while ( ( request = disk.write( param, ( byte[] )args ) )
+                          == null )
                      ioQueue.enqueueAndSleep( COND_DISK_REQ );
-                  while ( disk.testAndResetReady( ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_FIN );
-                  return OK;
+                  return waitForDisk( request );
                case SYNC:     // synchronize disk data to a real file
-                  while ( disk.sync( ) == false )
+                  while ( ( request = disk.sync( ) ) == null )
                      ioQueue.enqueueAndSleep( COND_DISK_REQ );
-                  while ( disk.testAndResetReady( ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_FIN );
-                  return OK;
+                  return waitForDisk( request );
                case READ:
                   switch ( param ) {
                      case STDIN:
@@ -196,15 +270,74 @@ public class Kernel
 					return fs.format(param);
                case DELETE:
 					return fs.delete((String) args);
+               case RAWREADV: // read a list of blocks in one disk command
+                  realArgs = ( Object[] )args;
+                  while ( ( request = disk.read( ( int[] )realArgs[0],
+                                                 ( byte[][] )realArgs[1],
+                                                 ( int[] )realArgs[2] ) )
+                          == null )
+                     ioQueue.enqueueAndSleep( COND_DISK_REQ );
+                  return waitForDisk( request );
+               case RAWWRITEV: // write a list of blocks in one disk command
+                  realArgs = ( Object[] )args;
+                  while ( ( request = disk.write( ( int[] )realArgs[0],
+                                                  ( byte[][] )realArgs[1],
+                                                  ( int[] )realArgs[2] ) )
+                          == null )
+                     ioQueue.enqueueAndSleep( COND_DISK_REQ );
+                  return waitForDisk( request );
+               case CREADV:   // read a list of blocks through the cache
+                  realArgs = ( Object[] )args;
+                  return cache.read( ( int[] )realArgs[0],
+                                     ( byte[][] )realArgs[1],
+                                     ( int[] )realArgs[2] ) ? OK : ERROR;
+               case CREADCLASS: // cread, telling the cache what the block is
+                  realArgs = ( Object[] )args;
+                  return cache.read( param, ( byte[] )realArgs[0],
+                                     ( Integer )realArgs[1] ) ? OK : ERROR;
+               case CWRITECLASS: // cwrite, telling the cache what the block is
+                  realArgs = ( Object[] )args;
+                  return cache.write( param, ( byte[] )realArgs[0],
+                                      ( Integer )realArgs[1] ) ? OK : ERROR;
+               case CWRITEPART: // cwrite only some bytes of a block
+                  realArgs = ( Object[] )args;
+                  return cache.write( param, ( Integer )realArgs[0],
+                                      ( byte[] )realArgs[1],
+                                      ( Integer )realArgs[2],
+                                      ( Integer )realArgs[3],
+                                      ( Integer )realArgs[4],
+                                      ( Boolean )realArgs[5] ) ? OK : ERROR;
+               case CPREFETCH: // read blocks into the cache in the background
+                  return cache.prefetch( ( int[] )args );
+               case CPIN:     // keep a block cached
+                  return cache.pin( param ) ? OK : ERROR;
+               case CUNPIN:
+                  return cache.unpin( param ) ? OK : ERROR;
+               case CREADDIRECT: // read blocks past the cache
+                  realArgs = ( Object[] )args;
+                  return cache.readDirect( ( int[] )realArgs[0],
+                                           ( byte[][] )realArgs[1],
+                                           ( int[] )realArgs[2] ) ? OK : ERROR;
+               case CWRITEDIRECT: // write blocks past the cache
+                  realArgs = ( Object[] )args;
+                  return cache.writeDirect( ( int[] )realArgs[0],
+                                            ( byte[][] )realArgs[1],
+                                            ( int[] )realArgs[2] ) ? OK : ERROR;
+               case STATS:
+                  IoStats stats = ( IoStats )args;
+                  cache.stats( stats );
+                  stats.diskBlocks = disk.getDiskSize( );
+                  disk.stats( stats );
+                  return OK;
             }
             return ERROR;
-         case INTERRUPT_DISK: // Disk interrupts
-            // wake up the thread waiting for a service completion
-            ioQueue.dequeueAndWakeup( COND_DISK_FIN );
-
-            // wake up the thread waiting for a request acceptance
-            ioQueue.dequeueAndWakeup( COND_DISK_REQ );
+         case INTERRUPT_DISK: // Disk interrupts, args = the completed request
+            // wake up only the thread(s) waiting on this request
+            ( ( Disk.Request )args ).complete( );
 
+            // wake up a thread waiting for a request acceptance
+            if ( disk.takeRejected( ) )
+               ioQueue.dequeueAndWakeup( COND_DISK_REQ );
             return OK;
          case INTERRUPT_IO:   // other I/O interrupts (not implemented)
             return OK;
@@ -212,6 +345,100 @@ public class Kernel
       return OK;
    }
 
+   // Start the cache's background flusher: every threadOS.cache.flushInterval
+   // ms (default 100, 0 for no flusher) it writes back the pages dirty for
+   // over threadOS.cache.dirtyAge ms (default 1000), and every dirty page
+   // once threadOS.cache.dirtyRatio percent (default 50) of them are dirty.
+   private static void startFlusher( ) {
+      int interval = Integer.getInteger( CACHE_FLUSH_INTERVAL, 100 );
+      if ( interval > 0 )
+         cache.startFlusher( Integer.getInteger( CACHE_DIRTY_RATIO, 50 ),
+                             Integer.getInteger( CACHE_DIRTY_AGE, 1000 ),
+                             interval );
+   }
+
+   // The caller's thread id, or -1 outside any ThreadOS thread.
+   private static int myTid( ) {
+      TCB myTcb = scheduler.getMyTcb( );
+      return ( myTcb != null ) ? myTcb.getTid( ) : -1;
+   }
+
+   // Sleep on a queued disk request until the disk interrupt completes it.
+   private static int waitForDisk( Disk.Request request ) {
+      return request.await( ) ? OK : ERROR;
+   }
+
+   // Instantiate the disk: a single DISK, or with threadOS.disk.members
+   // set above 1, a volume striped threadOS.disk.stripeWidth blocks
+   // (default 4) at a time across that many disks DISK.0, DISK.1, ...
+   private static Disk newDisk( int totalBlocks ) {
+      int memberCount = Integer.getInteger( DISK_MEMBERS, 1 );
+      if ( memberCount <= 1 )
+         return newDisk( totalBlocks, "DISK" );
+      int stripeWidth = Integer.getInteger( DISK_STRIPE_WIDTH, 4 );
+      if ( stripeWidth < 1 )
+         stripeWidth = 1;
+      int memberBlocks = StripedDisk.memberSize( totalBlocks, memberCount,
+                                                 stripeWidth );
+      Disk members[] = new Disk[memberCount];
+      for ( int i = 0; i < memberCount; i++ )
+         members[i] = newDisk( memberBlocks, "DISK." + i );
+      return new StripedDisk( totalBlocks, members, stripeWidth );
+   }
+
+   // Instantiate the disk backend chosen by the threadOS.disk property:
+   // "heap" (default) keeps the image in memory and rewrites it on sync,
+   // "mapped" maps the image into memory and syncs only the regions written,
+   // "sparse" pages blocks in on first access, keeping at most
+   //          threadOS.disk.resident (default 1024) of them in memory.
+   private static Disk newDisk( int totalBlocks, String image ) {
+      String backend = System.getProperty( DISK_BACKEND, "heap" );
+      if ( backend.equals( "mapped" ) )
+         return new MappedDisk( totalBlocks, image );
+      if ( backend.equals( "sparse" ) )
+         return new SparseDisk( totalBlocks, image,
+                                Integer.getInteger( DISK_RESIDENT, 1024 ) );
+      if ( totalBlocks > Disk.MAX_HEAP_BLOCKS ) {
+         // a byte[] cannot hold the image, so map the file instead
+         System.err.println( "threadOS: " + totalBlocks
+                             + " blocks exceed the heap disk, using mapped" );
+         return new MappedDisk( totalBlocks, image );
+      }
+      if ( !backend.equals( "heap" ) )
+         System.err.println( "threadOS: unknown disk " + backend
+                             + ", using heap" );
+      return new Disk( totalBlocks, image );
+   }
+
+   // Apply the latency model chosen by threadOS.disk.model:
+   // "hdd" (default) seeks across tracks, 20 ms per command plus 1 ms per
+   //       track crossed; trackSize, transferTime, delayPerTrack and
+   //       streamTime override the parts of it
+   // "ssd" has a constant latency of transferTime (default 1 ms) per
+   //       command and no seek or streaming penalty
+   // "none" never sleeps, leaving only the CPU cost of the I/O stack
+   private static void setDiskLatency( ) {
+      String model = System.getProperty( DISK_MODEL, "hdd" );
+      if ( model.equals( "none" ) ) {
+         disk.setLatency( 1, 0, 0, 0 );
+         return;
+      }
+      if ( model.equals( "ssd" ) ) {
+         disk.setLatency( 1, Integer.getInteger( DISK_TRANSFER_TIME, 1 ),
+                          0, 0 );
+         return;
+      }
+      if ( !model.equals( "hdd" ) )
+         System.err.println( "threadOS: unknown disk model " + model
+                             + ", using hdd" );
+      int trackSize = Integer.getInteger( DISK_TRACK_SIZE, 10 );
+      int transferTime = Integer.getInteger( DISK_TRANSFER_TIME, 20 );
+      disk.setLatency( trackSize, transferTime,
+                       Integer.getInteger( DISK_DELAY_PER_TRACK, 1 ),
+                       Integer.getInteger( DISK_STREAM_TIME,
+                          Math.max( 1, transferTime / Math.max( 1, trackSize ) ) ) );
+   }
+
    // Spawning a new thread
    private static int sysExec( String args[] ) {
       String thrName = args[0]; // args[0] has a thread name
@@ -0,0 +1,68 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+// A Disk whose image lives in the image file itself, mapped into memory.
+// READ and WRITE copy straight to and from the mapping, and SYNC forces
+// only the segments written since the previous SYNC instead of rewriting
+// the whole file.
+public class MappedDisk extends Disk {
+    // blocks per mapped segment, the granularity of an incremental sync
+    private static final int SEGMENT_BLOCKS = 2048;
+
+    private RandomAccessFile file;
+    private MappedByteBuffer segments[];
+    private boolean dirty[];
+
+    public MappedDisk( int totalBlocks ) {
+	this( totalBlocks, "DISK" );
+    }
+
+    public MappedDisk( int totalBlocks, String image ) {
+	super( totalBlocks, image, false );
+	int segmentCount = ( getDiskSize( ) + SEGMENT_BLOCKS - 1 ) / SEGMENT_BLOCKS;
+	segments = new MappedByteBuffer[ segmentCount ];
+	dirty = new boolean[ segmentCount ];
+	try {
+	    if ( new File( image ).exists( ) == false )
+		SysLib.cerr( "threadOS: " + image + " created\n" );
+	    file = new RandomAccessFile( image, "rw" );
+	    FileChannel channel = file.getChannel( );
+	    for ( int i = 0; i < segmentCount; i++ ) {
+		long start = ( long )i * SEGMENT_BLOCKS * blockSize;
+		int blocks = Math.min( SEGMENT_BLOCKS,
+				       getDiskSize( ) - i * SEGMENT_BLOCKS );
+		// mapping past the end grows the file with zero blocks
+		segments[i] = channel.map( FileChannel.MapMode.READ_WRITE,
+					   start, ( long )blocks * blockSize );
+	    }
+	} catch ( IOException e ) {
+	    SysLib.cerr( e.toString( ) + "\n" );
+	}
+    }
+
+    // Returns a view of the segment holding blockId, positioned at the block.
+    private ByteBuffer locate( int blockId ) {
+	ByteBuffer view = segments[ blockId / SEGMENT_BLOCKS ].duplicate( );
+	view.position( ( blockId % SEGMENT_BLOCKS ) * blockSize );
+	return view;
+    }
+
+    protected void readBlock( int blockId, byte buffer[], int offset ) {
+	locate( blockId ).get( buffer, offset, blockSize );
+    }
+
+    protected void writeBlock( int blockId, byte buffer[], int offset ) {
+	locate( blockId ).put( buffer, offset, blockSize );
+	dirty[ blockId / SEGMENT_BLOCKS ] = true;
+    }
+
+    protected void syncImage( ) {
+	for ( int i = 0; i < segments.length; i++ ) {
+	    if ( dirty[i] ) {
+		segments[i].force( );
+		dirty[i] = false;
+	    }
+	}
+    }
+}
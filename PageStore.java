@@ -0,0 +1,134 @@
+import java.nio.*;
+import java.util.*;
+
+// Holds the contents of the cache pages, addressed by page number.  The
+// heap store keeps a byte[] per page; the direct store keeps them all in
+// direct ByteBuffers outside the Java heap, so that a large cache adds no
+// objects for the garbage collector to trace.  A store is not thread safe:
+// Cache gives each stripe its own and only uses it under the stripe's lock.
+public abstract class PageStore {
+    protected int blockSize;
+    private String name;
+
+    protected PageStore( int blockSize ) {
+	this.blockSize = blockSize;
+    }
+
+    // Copies length bytes of page from offset into dst at dstOffset.
+    public abstract void get( int page, int offset, byte dst[], int dstOffset,
+			      int length );
+
+    // Copies length bytes of src from srcOffset into page at offset.
+    public abstract void put( int page, int offset, byte src[], int srcOffset,
+			      int length );
+
+    // Sets every byte of page to zero.
+    public abstract void zero( int page );
+
+    // Returns the contents of page, which become undefined.  The page is
+    // about to be reused while its old contents are still being written
+    // back.
+    public byte[] take( int page ) {
+	return copy( page );
+    }
+
+    // Returns a copy of the contents of page.
+    public byte[] copy( int page ) {
+	byte data[] = new byte[ blockSize ];
+	get( page, 0, data, 0, blockSize );
+	return data;
+    }
+
+    public String getName( ) {
+	return name;
+    }
+
+    // Instantiate a store by name for pages pages of blockSize bytes: heap
+    // (the default) or direct.
+    public static PageStore create( String name, int pages, int blockSize ) {
+	PageStore store;
+	if ( name.equals( "direct" ) )
+	    store = new Direct( pages, blockSize );
+	else {
+	    if ( !name.equals( "heap" ) )
+		SysLib.cerr( "threadOS: unknown cache store " + name
+			     + ", using heap\n" );
+	    store = new Heap( pages, blockSize );
+	    name = "heap";
+	}
+	store.name = name;
+	return store;
+    }
+
+    // A byte[] per page.
+    private static class Heap extends PageStore {
+	private byte pages[][];
+
+	Heap( int pages, int blockSize ) {
+	    super( blockSize );
+	    this.pages = new byte[ pages ][ blockSize ];
+	}
+
+	public void get( int page, int offset, byte dst[], int dstOffset,
+			 int length ) {
+	    System.arraycopy( pages[page], offset, dst, dstOffset, length );
+	}
+
+	public void put( int page, int offset, byte src[], int srcOffset,
+			 int length ) {
+	    System.arraycopy( src, srcOffset, pages[page], offset, length );
+	}
+
+	public void zero( int page ) {
+	    Arrays.fill( pages[page], ( byte )0 );
+	}
+
+	// hand the array itself over rather than copy it
+	public byte[] take( int page ) {
+	    byte data[] = pages[page];
+	    pages[page] = new byte[ blockSize ];
+	    return data;
+	}
+    }
+
+    // Pages laid end to end in direct buffers of at most MAX_ARENA bytes.
+    private static class Direct extends PageStore {
+	private static final int MAX_ARENA = 1 << 30;
+	private ByteBuffer arenas[];
+	private int pagesPerArena;
+	private byte zeros[];
+
+	Direct( int pages, int blockSize ) {
+	    super( blockSize );
+	    pagesPerArena = MAX_ARENA / blockSize;
+	    int count = ( pages + pagesPerArena - 1 ) / pagesPerArena;
+	    arenas = new ByteBuffer[ count ];
+	    for ( int i = 0; i < count; i++ )
+		arenas[i] = ByteBuffer.allocateDirect(
+		    Math.min( pages - i * pagesPerArena, pagesPerArena )
+		    * blockSize );
+	    zeros = new byte[ blockSize ];
+	}
+
+	// The arena holding page, positioned at offset in the page.
+	private ByteBuffer seek( int page, int offset ) {
+	    ByteBuffer arena = arenas[ page / pagesPerArena ];
+	    arena.position( ( page % pagesPerArena ) * blockSize + offset );
+	    return arena;
+	}
+
+	public void get( int page, int offset, byte dst[], int dstOffset,
+			 int length ) {
+	    seek( page, offset ).get( dst, dstOffset, length );
+	}
+
+	public void put( int page, int offset, byte src[], int srcOffset,
+			 int length ) {
+	    seek( page, offset ).put( src, srcOffset, length );
+	}
+
+	public void zero( int page ) {
+	    seek( page, 0 ).put( zeros, 0, blockSize );
+	}
+    }
+}
@@ -0,0 +1,104 @@
+import java.io.*;
+import java.util.*;
+
+// A Disk that pages its image in from the image file one block at a time,
+// on first access, so booting costs the same whatever the size of the
+// disk.  At most residentBlocks blocks are held in memory; the least
+// recently used one is dropped to make room, written back first if it
+// is dirty.  Blocks past the end of the file were never written and read
+// as zeros without being held at all, and SYNC writes back only the dirty
+// blocks, leaving untouched regions as holes in the file.
+public class SparseDisk extends Disk {
+    private static class Block {
+	byte data[] = new byte[ blockSize ];
+	boolean dirty = false;
+    }
+
+    private RandomAccessFile file;
+    private LinkedHashMap<Integer, Block> resident;
+
+    public SparseDisk( int totalBlocks, String image, int residentBlocks ) {
+	super( totalBlocks, image, false );
+	final int budget = ( residentBlocks > 0 ) ? residentBlocks : 1;
+	resident = new LinkedHashMap<Integer, Block>( 16, 0.75f, true ) {
+		protected boolean removeEldestEntry(
+		    Map.Entry<Integer, Block> eldest ) {
+		    if ( size( ) <= budget )
+			return false;
+		    if ( eldest.getValue( ).dirty )
+			store( eldest.getKey( ), eldest.getValue( ) );
+		    return true;
+		}
+	    };
+	try {
+	    if ( new File( image ).exists( ) == false )
+		SysLib.cerr( "threadOS: " + image + " created\n" );
+	    file = new RandomAccessFile( image, "rw" );
+	} catch ( IOException e ) {
+	    SysLib.cerr( e.toString( ) + "\n" );
+	}
+    }
+
+    // Returns the resident copy of blockId, paging it in if it is in the
+    // file, or null if the block was never written.
+    private Block load( int blockId ) {
+	Block block = resident.get( blockId );
+	if ( block != null )
+	    return block;
+	long start = ( long )blockId * blockSize;
+	try {
+	    if ( start >= file.length( ) )
+		return null;
+	    block = new Block( );
+	    file.seek( start );
+	    int n = 0;
+	    while ( n < blockSize ) {
+		int read = file.read( block.data, n, blockSize - n );
+		if ( read < 0 )
+		    break; // a short last block, the rest is zero
+		n += read;
+	    }
+	} catch ( IOException e ) {
+	    SysLib.cerr( e.toString( ) + "\n" );
+	    return null;
+	}
+	resident.put( blockId, block );
+	return block;
+    }
+
+    private void store( int blockId, Block block ) {
+	try {
+	    file.seek( ( long )blockId * blockSize );
+	    file.write( block.data );
+	    block.dirty = false;
+	} catch ( IOException e ) {
+	    SysLib.cerr( e.toString( ) + "\n" );
+	}
+    }
+
+    protected void readBlock( int blockId, byte buffer[], int offset ) {
+	Block block = load( blockId );
+	if ( block == null )
+	    Arrays.fill( buffer, offset, offset + blockSize, ( byte )0 );
+	else
+	    System.arraycopy( block.data, 0, buffer, offset, blockSize );
+    }
+
+    protected void writeBlock( int blockId, byte buffer[], int offset ) {
+	// the whole block is overwritten, so there is no need to page it in
+	Block block = resident.get( blockId );
+	if ( block == null ) {
+	    block = new Block( );
+	    resident.put( blockId, block );
+	}
+	System.arraycopy( buffer, offset, block.data, 0, blockSize );
+	block.dirty = true;
+    }
+
+    protected void syncImage( ) {
+	for ( Map.Entry<Integer, Block> entry : resident.entrySet( ) ) {
+	    if ( entry.getValue( ).dirty )
+		store( entry.getKey( ), entry.getValue( ) );
+	}
+    }
+}
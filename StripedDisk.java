@@ -0,0 +1,107 @@
+import java.util.*;
+
+// A RAID-0 volume: logical blocks are dealt round-robin, stripeWidth
+// blocks at a time, across member disks, each a Disk of its own with its
+// own thread, head and image file.  A request is split into one part per
+// member it touches and completes when the last part does, so the blocks
+// of a large read or write move on every member at once.
+public class StripedDisk extends Disk {
+    private Disk members[];
+    private int stripeWidth;
+
+    // Blocks each of memberCount members needs to hold totalBlocks.
+    public static int memberSize( int totalBlocks, int memberCount,
+				  int stripeWidth ) {
+	int stripe = memberCount * stripeWidth;
+	return ( totalBlocks + stripe - 1 ) / stripe * stripeWidth;
+    }
+
+    public StripedDisk( int totalBlocks, Disk members[], int stripeWidth ) {
+	super( totalBlocks, "DISK", false );
+	this.members = members;
+	this.stripeWidth = ( stripeWidth > 0 ) ? stripeWidth : 1;
+    }
+
+    private int memberOf( int blockId ) {
+	return blockId / stripeWidth % members.length;
+    }
+
+    private int memberBlock( int blockId ) {
+	return blockId / stripeWidth / members.length * stripeWidth
+	    + blockId % stripeWidth;
+    }
+
+    // The volume has no thread of its own to run; its members do the work.
+    public void start( ) {
+	for ( int i = 0; i < members.length; i++ )
+	    members[i].start( );
+    }
+
+    public synchronized void setLatency( int trackSize, int transferTime,
+					 int delayPerTrack, int streamTime ) {
+	for ( int i = 0; i < members.length; i++ )
+	    members[i].setLatency( trackSize, transferTime, delayPerTrack,
+				   streamTime );
+    }
+
+    public synchronized void setScheduler( DiskScheduler scheduler ) {
+	members[0].setScheduler( scheduler );
+	for ( int i = 1; i < members.length; i++ )
+	    members[i].setScheduler( scheduler.copy( ) );
+    }
+
+    public synchronized void stats( IoStats stats ) {
+	for ( int i = 0; i < members.length; i++ )
+	    members[i].stats( stats );
+    }
+
+    // Only the volume queues work on its members, so a member that has
+    // room now still has room when the request is split across them.
+    protected synchronized boolean isFull( ) {
+	for ( int i = 0; i < members.length; i++ ) {
+	    if ( members[i].isFull( ) )
+		return true;
+	}
+	return false;
+    }
+
+    // A SYNC goes to every member; a READ or WRITE to the members holding
+    // its blocks, each part in that member's own block numbers.
+    protected synchronized void queue( Request request ) {
+	int count[] = new int[ members.length ];
+	if ( request.command == SYNC )
+	    Arrays.fill( count, 1 );
+	else {
+	    for ( int i = 0; i < request.blocks.length; i++ )
+		count[ memberOf( request.blocks[i] ) ]++;
+	}
+	int parts = 0;
+	for ( int m = 0; m < members.length; m++ ) {
+	    if ( count[m] > 0 )
+		parts++;
+	}
+	request.split( parts );
+
+	for ( int m = 0; m < members.length; m++ ) {
+	    if ( count[m] == 0 )
+		continue;
+	    if ( request.command == SYNC ) {
+		members[m].enqueue( SYNC, null, null, null, request );
+		continue;
+	    }
+	    int blocks[] = new int[ count[m] ];
+	    byte buffers[][] = new byte[ count[m] ][];
+	    int offsets[] = new int[ count[m] ];
+	    int n = 0;
+	    for ( int i = 0; i < request.blocks.length; i++ ) {
+		if ( memberOf( request.blocks[i] ) != m )
+		    continue;
+		blocks[n] = memberBlock( request.blocks[i] );
+		buffers[n] = request.buffers[i];
+		offsets[n++] = request.offsets[i];
+	    }
+	    members[m].enqueue( request.command, blocks, buffers, offsets,
+				request );
+	}
+    }
+}
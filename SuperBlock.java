@@ -1,6 +1,14 @@
+import java.util.Arrays;
+
 
 /**
- * Superblock manages all blocks, not files or inodes
+ * Superblock manages all blocks, not files or inodes. Which blocks are in
+ * use is kept in a bitmap, one bit per disk block, stored in the blocks
+ * right after the inodes and held in memory while the disk is mounted.
+ * Blocks are never cleared on disk: no block at or past the high-water
+ * mark has been used since the disk was formatted, and the blocks handed
+ * out but not written yet are kept track of, so that the file system can
+ * read them as zeros
  */
 class SuperBlock 
 {
@@ -14,17 +22,48 @@ class SuperBlock
      */
     public static int totalInodes;
     /**
-     * pointer to the first free block
+     * the lowest numbered free block, NO_MORE_BLOCKS when the disk is full
      */
     public static int freeList;   
+    /**
+     * the on-disk format of the mounted disk, FORMAT_NARROW or FORMAT_WIDE
+     */
+    public static int format = 1;
+    /**
+     * every block from here on has been free since the disk was formatted,
+     * its bitmap bits need not be read or written
+     */
+    public static int highWater;
     /**
      * default number of inodes sugested by faq on assignment
      */
     public static final int DEFAULT_INODES = 64;
     /**
-     * the number of inodes one block can contain
+     * the number of inodes one block can contain in the narrow format, see
+     * Inode.inodesPerBlock() for the format of the mounted disk
      */
     public static final int INODES_PER_BLOCK = 16;
+    /**
+     * original format, 16 bit block pointers, stored as 0 or 1
+     */
+    public static final int FORMAT_NARROW = 1;
+    /**
+     * 32 bit block pointers, for disks of more than MAX_NARROW_BLOCKS
+     */
+    public static final int FORMAT_WIDE = 2;
+    /**
+     * the most blocks a 16 bit block pointer can address
+     */
+    public static final int MAX_NARROW_BLOCKS = Short.MAX_VALUE;
+    /**
+     * boot option forcing formatDisk to use the wide format on any disk
+     */
+    public static final String WIDE_PROPERTY = "threadOS.fs.wide";
+    /**
+     * the allocator of the mounted disk, stored after the format; images
+     * from before the bitmap have 0 there and are formatted when mounted
+     */
+    public static final int ALLOC_BITMAP = 1;
     /**
      * default number of blocks spec by faq/assignment
      */
@@ -34,15 +73,47 @@ class SuperBlock
     /**
      * value that is used for returns when we are out of blocks
      */
-    private static final short NO_MORE_BLOCKS = -1;
+    private static final int NO_MORE_BLOCKS = -1;
+    /**
+     * the number of blocks one bitmap block keeps track of
+     */
+    private static final int BITS_PER_BLOCK = Disk.blockSize * 8;
+    /**
+     * one bit per disk block, set if the block is in use
+     */
+    private byte[] bitmap;
+    /**
+     * the bitmap blocks changed since syncBitmap last wrote them
+     */
+    private boolean[] bitmapDirty;
+    /**
+     * the number of free blocks
+     */
+    private int freeCount;
+    /**
+     * one bit per disk block, set from when it is allocated until the file
+     * system has written it; only kept in memory
+     */
+    private byte[] unwritten;
+    /**
+     * the number of bits set in unwritten
+     */
+    private int unwrittenCount;
+    /**
+     * the high-water mark moved since it was last written
+     */
+    private boolean highWaterDirty;
     /**
      * Create a superblock for a filesystem
      * @param diskSize the size of our disk
      */
     public SuperBlock(int diskSize) {
         byte[] block = new byte[Disk.blockSize];
+        //block 0 is read and written through the cache, where it stays
+        //pinned for as long as the system is up
+        SysLib.pin(0);
         //if invalid, invalidate superblock block
-        if (SysLib.rawread(0, block) < 0) {
+        if (SysLib.cread(0, block, IoStats.SUPERBLOCK) < 0) {
             invalidate();
             return;
         }
@@ -50,22 +121,278 @@ class SuperBlock
         totalBlocks = SysLib.bytes2int(block, 0);
         totalInodes = SysLib.bytes2int(block, 4);
         freeList = SysLib.bytes2int(block, 8);
-        //checks to see if the disk is already formated
-        if (totalBlocks == diskSize && totalInodes > 0 && freeList > 1) {
-            //it is, do nothing
+        //images older than the wide format have 0 here
+        format = (SysLib.bytes2int(block, 12) == FORMAT_WIDE)
+                ? FORMAT_WIDE : FORMAT_NARROW;
+        int allocator = SysLib.bytes2int(block, 16);
+        //bitmap images from before the high-water mark have 0 here, every
+        //block of theirs may have been used
+        highWater = SysLib.bytes2int(block, 20);
+        if (highWater <= 0 || highWater > totalBlocks) {
+            highWater = totalBlocks;
+        }
+        //checks to see if the disk is already formated, freeList is left
+        //out as a full disk has none
+        if (totalBlocks == diskSize && totalInodes > 0
+                && allocator == ALLOC_BITMAP) {
+            //it is, load which blocks are in use
+            loadBitmap();
+            writeHeader(block);
         } else //otherwise we need to start to format
         {
-            //fix any missmatch
+            //fix any missmatch, and clear the inodes too: the blocks after
+            //them become the bitmap, and the files of an image from before
+            //it would keep pointing into blocks handed out again
             totalBlocks = diskSize;
-            totalInodes = DEFAULT_INODES;
-            freeList = totalInodes / INODES_PER_BLOCK + 1;
+            formatDisk(DEFAULT_INODES);
         }
-
+    }
+    /**
+     * Writes the superblock's fields to block 0, through the cache where
+     * it is pinned
+     * @param block the contents of block 0 to put them in
+     */
+    private void writeHeader(byte[] block) {
         SysLib.int2bytes(totalBlocks, block, 0);
         SysLib.int2bytes(totalInodes, block, 4);
         SysLib.int2bytes(freeList, block, 8);
-
-        SysLib.rawwrite(0, block);
+        SysLib.int2bytes(format, block, 12);
+        SysLib.int2bytes(ALLOC_BITMAP, block, 16);
+        SysLib.int2bytes(highWater, block, 20);
+        SysLib.cwrite(0, block, IoStats.SUPERBLOCK);
+        highWaterDirty = false;
+    }
+    /**
+     * @return the first block of the bitmap, right after the inodes
+     */
+    private static int bitmapStart() {
+        int inodesPerBlock = Inode.inodesPerBlock();
+        return (totalInodes + inodesPerBlock - 1) / inodesPerBlock + 1;
+    }
+    /**
+     * @return the number of blocks the bitmap takes
+     */
+    private static int bitmapBlocks() {
+        return bitmapBlocks(totalBlocks);
+    }
+    /**
+     * @param blocks a number of blocks from block 0
+     * @return the number of bitmap blocks holding their bits
+     */
+    private static int bitmapBlocks(int blocks) {
+        return (blocks + BITS_PER_BLOCK - 1) / BITS_PER_BLOCK;
+    }
+    /**
+     * @return the first block that can hold file data
+     */
+    public static int firstDataBlock() {
+        return bitmapStart() + bitmapBlocks();
+    }
+    /**
+     * Marks every block from firstDataBlock() on free and the superblock,
+     * inodes and bitmap in use. The high-water mark goes back to the first
+     * data block, so only the bitmap blocks with the bits of the blocks
+     * before it are written, however large the disk
+     */
+    private void clearBitmap() {
+        bitmap = new byte[bitmapBlocks() * Disk.blockSize];
+        bitmapDirty = new boolean[bitmapBlocks()];
+        unwritten = new byte[bitmap.length];
+        unwrittenCount = 0;
+        int first = Math.min(firstDataBlock(), totalBlocks);
+        highWater = first;
+        highWaterDirty = true;
+        for (int i = 0; i < first; i++) {
+            setInUse(i, true);
+        }
+        freeCount = totalBlocks - first;
+        freeList = (freeCount > 0) ? first : NO_MORE_BLOCKS;
+    }
+    /**
+     * Reads the bitmap of a mounted disk and counts its free blocks. Only
+     * the bitmap blocks below the high-water mark are read, the bits past
+     * it are left over from before the disk was formatted
+     */
+    private void loadBitmap() {
+        bitmap = new byte[bitmapBlocks() * Disk.blockSize];
+        bitmapDirty = new boolean[bitmapBlocks()];
+        unwritten = new byte[bitmap.length];
+        unwrittenCount = 0;
+        byte[] data = new byte[Disk.blockSize];
+        for (int i = 0; i < bitmapBlocks(highWater); i++) {
+            SysLib.cread(bitmapStart() + i, data, IoStats.BITMAP);
+            System.arraycopy(data, 0, bitmap, i * Disk.blockSize,
+                    Disk.blockSize);
+        }
+        freeCount = totalBlocks - highWater;
+        for (int i = 0; i < highWater; i++) {
+            if (!isInUse(i)) {
+                freeCount++;
+            }
+        }
+        for (int i = highWater; i < Math.min(totalBlocks,
+                bitmapBlocks(highWater) * BITS_PER_BLOCK); i++) {
+            setBit(bitmap, i, false);
+        }
+        freeList = nextFree(0);
+    }
+    /**
+     * @param bits a bitmap
+     * @param block a disk block
+     * @return whether its bit is set
+     */
+    private static boolean testBit(byte[] bits, int block) {
+        return (bits[block >> 3] & (1 << (block & 7))) != 0;
+    }
+    /**
+     * @param bits a bitmap
+     * @param block a disk block
+     * @param set whether to set or clear its bit
+     */
+    private static void setBit(byte[] bits, int block, boolean set) {
+        if (set) {
+            bits[block >> 3] |= (byte) (1 << (block & 7));
+        } else {
+            bits[block >> 3] &= (byte) ~(1 << (block & 7));
+        }
+    }
+    /**
+     * @param block a disk block
+     * @return whether the bitmap has it in use
+     */
+    private boolean isInUse(int block) {
+        return testBit(bitmap, block);
+    }
+    /**
+     * set or clear the bit of a block, marking its bitmap block dirty
+     * @param block a disk block
+     * @param inUse the new state
+     */
+    private void setInUse(int block, boolean inUse) {
+        setBit(bitmap, block, inUse);
+        bitmapDirty[block / BITS_PER_BLOCK] = true;
+    }
+    /**
+     * Takes a free block: marks it in use and unwritten and raises the
+     * high-water mark past it
+     * @param block the block
+     */
+    private void take(int block) {
+        setInUse(block, true);
+        setUnwritten(block, true);
+        if (block >= highWater) {
+            highWater = block + 1;
+            highWaterDirty = true;
+        }
+    }
+    /**
+     * @param block a disk block
+     * @param set whether it is now unwritten or written
+     */
+    private void setUnwritten(int block, boolean set) {
+        if (testBit(unwritten, block) != set) {
+            setBit(unwritten, block, set);
+            unwrittenCount += set ? 1 : -1;
+        }
+    }
+    /**
+     * @param block a disk block
+     * @return whether nothing has been written to it since it was
+     * allocated, so that it reads as zeros whatever is on disk
+     */
+    public synchronized boolean isUnwritten(int block) {
+        return block >= highWater || testBit(unwritten, block);
+    }
+    /**
+     * Looks up which of a number of blocks are unwritten, in one step
+     * @param blocks the blocks
+     * @return whether each one is unwritten, or null if none is
+     */
+    public synchronized boolean[] findUnwritten(int[] blocks) {
+        boolean[] found = null;
+        for (int i = 0; i < blocks.length; i++) {
+            if (blocks[i] >= highWater
+                    || unwrittenCount > 0 && testBit(unwritten, blocks[i])) {
+                if (found == null) {
+                    found = new boolean[blocks.length];
+                }
+                found[i] = true;
+            }
+        }
+        return found;
+    }
+    /**
+     * Records that count blocks have been written, in one step
+     * @param blocks holds the blocks
+     * @param from the index of the first of them in blocks
+     * @param count the number of blocks
+     */
+    public synchronized void markWritten(int[] blocks, int from, int count) {
+        for (int i = from; i < from + count && unwrittenCount > 0; i++) {
+            if (blocks[i] >= 0 && blocks[i] < totalBlocks) {
+                setUnwritten(blocks[i], false);
+            }
+        }
+    }
+    /**
+     * @param from the block to start looking at
+     * @return the lowest numbered free block from there, or NO_MORE_BLOCKS
+     */
+    private int nextFree(int from) {
+        for (int block = from; block < totalBlocks; block++) {
+            //skip over bytes with every block in use
+            if ((block & 7) == 0 && bitmap[block >> 3] == (byte) 0xff) {
+                block += 7;
+                continue;
+            }
+            if (!isInUse(block)) {
+                return block;
+            }
+        }
+        return NO_MORE_BLOCKS;
+    }
+    /**
+     * Writes the bitmap blocks changed since the last call to the cache,
+     * which keeps them among the metadata, along with the high-water mark
+     * if it moved; a csync takes them to disk. Allocations and frees only
+     * change the bitmap in memory, the file system calls this once per
+     * operation
+     */
+    public synchronized void syncBitmap() {
+        byte[] data = new byte[Disk.blockSize];
+        for (int i = 0; i < bitmapDirty.length; i++) {
+            if (bitmapDirty[i]) {
+                System.arraycopy(bitmap, i * Disk.blockSize, data, 0,
+                        Disk.blockSize);
+                SysLib.cwrite(bitmapStart() + i, data, IoStats.BITMAP);
+                bitmapDirty[i] = false;
+            }
+        }
+        if (highWaterDirty) {
+            //every field of block 0 is at hand, no need to read it first
+            writeHeader(new byte[Disk.blockSize]);
+        }
+    }
+    /**
+     * @return the number of free blocks
+     */
+    public synchronized int getFreeBlockCount() {
+        return freeCount;
+    }
+    /**
+     * @return true if the mounted disk uses 32 bit block pointers
+     */
+    public static boolean isWide() {
+        return format == FORMAT_WIDE;
+    }
+    /**
+     * pick the format for a disk about to be formatted: wide when 16 bit
+     * block pointers cannot reach every block, or when asked for at boot
+     * @return FORMAT_NARROW or FORMAT_WIDE
+     */
+    private static int chooseFormat() {
+        return (totalBlocks > MAX_NARROW_BLOCKS || Boolean.getBoolean(WIDE_PROPERTY))
+                ? FORMAT_WIDE : FORMAT_NARROW;
     }
     /**
      * used to invalidate current superblock information
@@ -88,46 +415,31 @@ class SuperBlock
 
         byte[] block = new byte[Disk.blockSize];
         totalInodes = numInodes;
+        format = chooseFormat();
+        int inodesPerBlock = Inode.inodesPerBlock();
 
-        //get the pointer to the first free block, check for correct offset for reading
-        freeList = (numInodes % INODES_PER_BLOCK) == 0
-                ? numInodes / INODES_PER_BLOCK + 1 : numInodes / INODES_PER_BLOCK + 2;
+        //every block past the inodes and the bitmap is free, and the first
+        //of them is where the free list starts
+        clearBitmap();
 
         //write the stored data to the block data (block array)
-        SysLib.int2bytes(totalBlocks, block, 0);
-        SysLib.int2bytes(totalInodes, block, 4);
-        SysLib.int2bytes(freeList, block, 8);
-        SysLib.rawwrite(0, block);
+        writeHeader(block);
 
         for (short i = 0; i < totalInodes; i++) {
             Inode inode = new Inode();
             inode.toBlockData(block, i);
 
-            if (i == INODES_PER_BLOCK || i + 1 == totalInodes) {
-                SysLib.cwrite(i / INODES_PER_BLOCK + 1, block);
+            //write each block of inodes once it is full
+            if ((i + 1) % inodesPerBlock == 0 || i + 1 == totalInodes) {
+                SysLib.cwrite(i / inodesPerBlock + 1, block, IoStats.INODE);
             }
         }
+        syncBitmap();
 
-			//zero out all data inside the array, get rid of junk data
-        //or get rid of last times data
-        for (int index = 0; index < Disk.blockSize; index++) {
-            block[index] = (byte) 0;
-        }
-
-        int tenth = totalBlocks / 10;
-
-        //Find the next free block for each block, until we have read all of the blocks
-        for (int currentBlock = freeList; currentBlock < totalBlocks; currentBlock++) {
-            SysLib.int2bytes((currentBlock + 1 >= totalBlocks) ? -1 : currentBlock + 1, block, 0);
-
-                //if at the end set the next free block we are invalid, other wise, set to next
-            //we will be saving this info as a short, not a int
-            SysLib.cwrite(currentBlock, block);
-
-            if (currentBlock % tenth == 0) {
-                SysLib.cerr(". ");
-            }
-        }
+        //the superblock, inode and bitmap blocks went through the cache,
+        //push them out and drop every cached block, the blocks of the
+        //old files among them
+        SysLib.flush();
     }
 
     /**
@@ -136,83 +448,141 @@ class SuperBlock
     public synchronized void sync() {
         byte[] data = new byte[Disk.blockSize];
         //read in old data
-        SysLib.rawread(0, data);
-        //copy new information to store to a byte array
-        SysLib.int2bytes(totalBlocks, data, 0);
-        SysLib.int2bytes(totalInodes, data, 4);
-        SysLib.int2bytes(freeList, data, 8);
+        SysLib.cread(0, data, IoStats.SUPERBLOCK);
 
-            //write the information in superblock to disk
-        //rawwrite instead of cwrite because we want the information
-        //to go directly to the disk.
-        SysLib.rawwrite(0, data);
+        //write the information in superblock and the bitmap to the cache, where block 0
+        //is pinned, and from there to disk
+        writeHeader(data);
+        syncBitmap();
+        SysLib.csync();
     }
     /**
      * used to get the next free block when  it is needed
      * @return the block number or error
      */
-    public synchronized short getNextFreeBlock() {
-        short retVal = (short) freeList;
+    public synchronized int getNextFreeBlock() {
+        int retVal = freeList;
          // indicates that there are no more free blocks
         if (retVal == NO_MORE_BLOCKS)
         {
             return - 1;
         }
+        //take it in the bitmap, syncBitmap writes the change later
+        take(retVal);
+        freeCount--;
+        freeList = nextFree(retVal + 1);
 
-        //grab the next free point in the blocks
-        byte[] data = new byte[Disk.blockSize];
-        //get the next free pointer from the one we are pointing at
-        SysLib.cread(freeList, data);
-
-        //first thing in the block
-        short nextFree = (short) SysLib.bytes2int(data, 0);
-
-        // Clear the block before giving it away.
-        for (int i = 0; i < Disk.blockSize; i++) {
-            data[i] = 0;
+        //not cleared, it reads as zeros until it is written
+        return retVal;
+    }
+    /**
+     * Allocates a run of contiguous free blocks (an extent) for a file that
+     * grows by wanted blocks, so that it can be read back without seeking.
+     * The run starts at goal, the block after the file's last one, when
+     * that is free; otherwise at the first free run of wanted blocks, or
+     * failing that the longest free run. Like getNextFreeBlock the blocks
+     * are not cleared but unwritten until markWritten
+     * @param goal the block the file would like next, or -1 for none
+     * @param wanted the number of blocks the file is expected to grow by
+     * @return { first block, number of blocks } of the run, which may be
+     * shorter than wanted, or null when the disk is full
+     */
+    public synchronized int[] allocateRun(int goal, int wanted) {
+        if (freeList == NO_MORE_BLOCKS || wanted < 1) {
+            return null;
         }
-        SysLib.cwrite(freeList, data);
-
-        // Next free will only equal 0 if the free list has not been fully
-        // allocated yet. Since no blocks past this block will be accessed 
-        // if this block is zeroed out, the next block is free.
-        //
-        // The primary motivation behind this methodolgy is that manually
-        // setting the entire free list on startup is quite time consuming,
-        // and is unnecessary if we assume that the disk is all 0s to start.
-        // This optimization is VERY implementation specific.
-        if (nextFree == 0) {
-            if (nextFree >= totalInodes) // If we have allocated every block, make free list indicate this.
-            {
-                freeList = NO_MORE_BLOCKS;
-            } else {
-                freeList++;
+        int start = (goal >= firstDataBlock() && goal < totalBlocks
+                && !isInUse(goal)) ? goal : findRun(wanted);
+        int length = 0;
+        while (length < wanted && start + length < totalBlocks
+                && !isInUse(start + length)) {
+            take(start + length);
+            length++;
+        }
+        freeCount -= length;
+        if (start == freeList) {
+            freeList = nextFree(start + length);
+        }
+        return new int[]{start, length};
+    }
+    /**
+     * Allocates count blocks in one step, as few runs as the free space
+     * allows, the first starting at goal if it is free and every other
+     * following the one before where it can
+     * @param goal the block the file would like next, or -1 for none
+     * @param count the number of blocks needed
+     * @return the blocks in order, fewer than count if the disk is full
+     */
+    public synchronized int[] allocateBlocks(int goal, int count) {
+        int[] blocks = new int[Math.max(0, count)];
+        int n = 0;
+        while (n < count) {
+            int[] run = allocateRun(goal, count - n);
+            if (run == null || run[1] == 0) {
+                break;
             }
-        } else {
-            freeList = nextFree;
+            for (int i = 0; i < run[1]; i++) {
+                blocks[n++] = run[0] + i;
+            }
+            goal = run[0] + run[1];
         }
-
-        return retVal;
+        return (n < count) ? Arrays.copyOf(blocks, n) : blocks;
+    }
+    /**
+     * give back count blocks allocated but never used, in one step
+     * @param blocks holds the blocks
+     * @param from the index of the first of them in blocks
+     * @param count the number of blocks
+     */
+    public synchronized void returnBlocks(int[] blocks, int from, int count) {
+        for (int i = from; i < from + count; i++) {
+            returnBlock(blocks[i]);
+        }
+    }
+    /**
+     * @param wanted the length of the run looked for
+     * @return the start of the first free run at least wanted blocks long,
+     * or of the longest free run if there is none
+     */
+    private int findRun(int wanted) {
+        int longestStart = freeList;
+        int longest = 0;
+        int start = freeList;
+        while (start != NO_MORE_BLOCKS) {
+            int end = start + 1;
+            while (end < totalBlocks && !isInUse(end)) {
+                end++;
+            }
+            if (end - start >= wanted) {
+                return start;
+            }
+            if (end - start > longest) {
+                longest = end - start;
+                longestStart = start;
+            }
+            start = nextFree(end);
+        }
+        return longestStart;
     }
     /**
      * give a block back to the superblock
      * @param blockNum the block to give back
      * @return the number of the block freed or error
      */
-    public int returnBlock(short blockNum) {
+    public synchronized int returnBlock(int blockNum) {
         int retVal = -1;
-        //check validity
-        if (blockNum < 0 || blockNum > totalBlocks) {
+        //check validity, only an allocated data block can be freed
+        if (blockNum < firstDataBlock() || blockNum >= totalBlocks
+                || !isInUse(blockNum)) {
             return retVal;
         }
-
-        byte[] data = new byte[Disk.blockSize];
-            //our new block is going to be the new end of the free list
-        //aka what the freelist will be pointing at
-        SysLib.int2bytes(freeList, data, 0);
-        //write the new data to the block
-        SysLib.cwrite(blockNum, data);
-        freeList = blockNum; // setting freelist to this block
+        setInUse(blockNum, false);
+        setUnwritten(blockNum, false);
+        freeCount++;
+        //keep the free list pointing at the lowest free block
+        if (freeList == NO_MORE_BLOCKS || blockNum < freeList) {
+            freeList = blockNum;
+        }
         return blockNum;
     }
 }
@@ -72,9 +72,9 @@ public class SysLib {
 				 Kernel.SLEEP, milliseconds, null );
     }
 
-    public static int disk( ) {
+    public static int disk( Disk.Request request ) {
 	return Kernel.interrupt( Kernel.INTERRUPT_DISK,
-				 0, 0, null );
+				 0, 0, request );
     }
 
     public static int cin( StringBuffer s ) {
@@ -102,6 +102,46 @@ public class SysLib {
 				 Kernel.RAWWRITE, blkNumber, b );
     }
 
+    // Scatter/gather forms: blkNumbers[i] is moved to or from b[i] at
+    // offsets[i], and the whole list is served as one disk command.
+    public static int rawread( int blkNumbers[], byte b[][], int offsets[] ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.RAWREADV, 0,
+				 new Object[] { blkNumbers, b, offsets } );
+    }
+
+    public static int rawwrite( int blkNumbers[], byte b[][], int offsets[] ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.RAWWRITEV, 0,
+				 new Object[] { blkNumbers, b, offsets } );
+    }
+
+    // Contiguous forms: count blocks from firstBlk, packed back to back in b.
+    public static int rawread( int firstBlk, int count, byte b[] ) {
+	int blkNumbers[] = new int[count];
+	byte buffers[][] = new byte[count][];
+	int offsets[] = new int[count];
+	packBlocks( firstBlk, b, blkNumbers, buffers, offsets );
+	return rawread( blkNumbers, buffers, offsets );
+    }
+
+    public static int rawwrite( int firstBlk, int count, byte b[] ) {
+	int blkNumbers[] = new int[count];
+	byte buffers[][] = new byte[count][];
+	int offsets[] = new int[count];
+	packBlocks( firstBlk, b, blkNumbers, buffers, offsets );
+	return rawwrite( blkNumbers, buffers, offsets );
+    }
+
+    private static void packBlocks( int firstBlk, byte b[], int blkNumbers[],
+				    byte buffers[][], int offsets[] ) {
+	for ( int i = 0; i < blkNumbers.length; i++ ) {
+	    blkNumbers[i] = firstBlk + i;
+	    buffers[i] = b;
+	    offsets[i] = i * Disk.blockSize;
+	}
+    }
+
     public static int sync( ) {
         return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
 				 Kernel.SYNC, 0, null );
@@ -112,11 +152,79 @@ public class SysLib {
 				 Kernel.CREAD, blkNumber, b );
     }
 
+    // blockClass, one of IoStats.SUPERBLOCK, INODE, INDIRECT, DATA and
+    // BITMAP, is what the cache statistics count the block as.
+    public static int cread( int blkNumber, byte b[], int blockClass ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.CREADCLASS, blkNumber,
+				 new Object[] { b, blockClass } );
+    }
+
+    public static int cread( int blkNumbers[], byte b[][], int offsets[] ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.CREADV, 0,
+				 new Object[] { blkNumbers, b, offsets } );
+    }
+
+    // Hints that blkNumbers will be cread soon; returns without waiting,
+    // with how many of them, from the first, the cache took the hint for.
+    public static int prefetch( int blkNumbers[] ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.CPREFETCH, 0, blkNumbers );
+    }
+
     public static int cwrite( int blkNumber, byte[] b ) {
         return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
 				 Kernel.CWRITE, blkNumber, b );
     }
 
+    public static int cwrite( int blkNumber, byte b[], int blockClass ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.CWRITECLASS, blkNumber,
+				 new Object[] { b, blockClass } );
+    }
+
+    // Writes length bytes of b from bOffset into block blkNumber at offset.
+    // fill says whether the rest of the block must keep its contents; if
+    // not, a block that is not cached is not read in to write it.
+    public static int cwrite( int blkNumber, int offset, byte b[],
+			      int bOffset, int length, int blockClass,
+			      boolean fill ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.CWRITEPART, blkNumber,
+				 new Object[] { offset, b, bOffset, length,
+						blockClass, fill } );
+    }
+
+    // Keeps block blkNumber in the cache once it is there, until unpinned
+    // as many times; for metadata that must not be evicted by a scan.
+    public static int pin( int blkNumber ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.CPIN, blkNumber, null );
+    }
+
+    public static int unpin( int blkNumber ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.CUNPIN, blkNumber, null );
+    }
+
+    // Read and write blkNumbers past the cache, for bulk transfers that
+    // would evict everything else; cached copies are still used and kept
+    // up to date.
+    public static int directread( int blkNumbers[], byte b[][],
+				  int offsets[] ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.CREADDIRECT, 0,
+				 new Object[] { blkNumbers, b, offsets } );
+    }
+
+    public static int directwrite( int blkNumbers[], byte b[][],
+				   int offsets[] ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.CWRITEDIRECT, 0,
+				 new Object[] { blkNumbers, b, offsets } );
+    }
+
     public static int flush( ) {
         return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
 				 Kernel.CFLUSH, 0, null );
@@ -127,6 +235,12 @@ public class SysLib {
 				 Kernel.CSYNC, 0, null );
     }
 
+    // Fills stats with the counters of the cache and disk since boot.
+    public static int stats( IoStats stats ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.STATS, 0, stats );
+    }
+
     public static String[] stringToArgs( String s ) {
 	StringTokenizer token = new StringTokenizer( s," " );
 	String[] progArgs = new String[ token.countTokens( ) ];
@@ -0,0 +1,109 @@
+import java.util.*;
+
+// Cache sync benchmark: reads a span of blocks into the cache, dirties a
+// scattered few hundred of them in random order and times the csync that
+// writes them back, reporting the simulated disk time it took.  Every
+// block is then read back from disk to check it, and a rawwrite naming one
+// block twice must leave the later buffer on disk whichever way the disk
+// sweeps over it.  Boot with a cache large enough to hold the span and
+// without the background flusher, e.g.
+//   java -DthreadOS.cache.blocks=1000 -DthreadOS.cache.flushInterval=0 Boot
+//   l Test10 [dirty blocks]
+// The cwrites clobber file data, so the disk is formatted afterwards.
+public class Test10 extends Thread {
+  final static int FIRST = 200;        // the span starts here
+  final static int DEFAULTDIRTY = 400;
+  int dirty;
+
+  public Test10( String args[] ) {
+    dirty = Integer.parseInt( args[0] );
+  }
+
+  public Test10( ) {
+    dirty = DEFAULTDIRTY;
+  }
+
+  public void run( ) {
+    IoStats before = new IoStats( );
+    SysLib.stats( before );
+    int span = dirty * 3 / 2;
+    SysLib.cout( "Test10: " + dirty + " dirty blocks among " + span
+                 + " cached, " + before.cacheBlocks + " block cache\n" );
+    if ( before.cacheBlocks < span )
+      SysLib.cout( "Test10: the cache cannot hold them all, "
+                   + "boot with -DthreadOS.cache.blocks=" + span + "\n" );
+
+    byte buffer[] = new byte[Disk.blockSize];
+    for ( int i = 0; i < span; i++ )
+      SysLib.cread( FIRST + i, buffer );
+
+    // dirty a random subset, in random order
+    Random random = new Random( 430 );
+    int blocks[] = new int[span];
+    for ( int i = 0; i < span; i++ )
+      blocks[i] = FIRST + i;
+    for ( int i = span - 1; i > 0; i-- ) {
+      int j = random.nextInt( i + 1 );
+      int swap = blocks[i];
+      blocks[i] = blocks[j];
+      blocks[j] = swap;
+    }
+    for ( int i = 0; i < dirty; i++ ) {
+      fill( buffer, blocks[i] );
+      SysLib.cwrite( blocks[i], buffer );
+    }
+
+    IoStats start = new IoStats( );
+    SysLib.stats( start );
+    long begin = System.currentTimeMillis( );
+    SysLib.csync( );
+    long elapsed = System.currentTimeMillis( ) - begin;
+    IoStats end = new IoStats( );
+    SysLib.stats( end );
+    SysLib.cout( "Test10: sync " + elapsed + " ms, simulated disk time "
+                 + ( end.seekTime - start.seekTime ) + " ms, disk commands "
+                 + ( end.diskCommands - start.diskCommands )
+                 + ", blocks written "
+                 + ( end.blocksWritten - start.blocksWritten )
+                 + " (" + ( end.gapFilled - start.gapFilled )
+                 + " clean to join runs)\n" );
+
+    // read everything back from disk
+    SysLib.flush( );
+    boolean correct = true;
+    byte expected[] = new byte[Disk.blockSize];
+    for ( int i = 0; i < dirty && correct; i++ ) {
+      SysLib.rawread( blocks[i], buffer );
+      fill( expected, blocks[i] );
+      correct = Arrays.equals( buffer, expected );
+    }
+    SysLib.cout( correct ? "Test10: Correct behavior of sync\n"
+                 : "Test10: wrong data on disk after sync\n" );
+    SysLib.cout( duplicateWrite( )
+                 ? "Test10: Correct behavior of a write naming a block twice\n"
+                 : "Test10: an earlier buffer won a duplicate write\n" );
+    SysLib.format( 64 );
+    SysLib.cout( "Test completed\n" );
+    SysLib.exit( );
+  }
+
+  // Leaves the head past the end of a rawwrite of FIRST twice, with
+  // FIRST + 1 and FIRST + 20 between them, so that the disk sweeps down
+  // over them, and checks that the second buffer for FIRST is on disk.
+  private static boolean duplicateWrite( ) {
+    byte buffer[] = new byte[Disk.blockSize];
+    SysLib.rawread( FIRST + 50, buffer );
+    int blocks[] = { FIRST, FIRST + 1, FIRST + 20, FIRST };
+    byte buffers[][] = new byte[blocks.length][Disk.blockSize];
+    for ( int i = 0; i < blocks.length; i++ )
+      fill( buffers[i], blocks[i] + i );
+    SysLib.rawwrite( blocks, buffers, new int[blocks.length] );
+    SysLib.rawread( FIRST, buffer );
+    return Arrays.equals( buffer, buffers[blocks.length - 1] );
+  }
+
+  private static void fill( byte buffer[], int blockId ) {
+    for ( int i = 0; i < buffer.length; i++ )
+      buffer[i] = ( byte )( blockId * 7 + i );
+  }
+}
@@ -0,0 +1,60 @@
+import java.util.*;
+
+// Block reuse test: writes a file of whole blocks, deletes it while its
+// blocks are still cached, then writes a few bytes to a new file, which
+// reuses the first of them.  After a csync the rest of that block must be
+// zeros on disk, not what the deleted file left there.  The disk is
+// formatted first.
+//   l Test11
+public class Test11 extends Thread {
+  final static int OLD_BLOCKS = 4;
+  final static int NEW_BYTES = 10;
+
+  public Test11( String args[] ) {
+  }
+
+  public Test11( ) {
+  }
+
+  public void run( ) {
+    SysLib.format( 64 );
+    byte old[] = new byte[OLD_BLOCKS * Disk.blockSize];
+    Arrays.fill( old, ( byte )0x5a );
+    int fd = SysLib.open( "old", "w" );
+    SysLib.write( fd, old );
+    SysLib.close( fd );
+    SysLib.delete( "old" );
+
+    byte data[] = new byte[NEW_BYTES];
+    Arrays.fill( data, ( byte )1 );
+    fd = SysLib.open( "new", "w" );
+    SysLib.write( fd, data );
+    SysLib.close( fd );
+    SysLib.csync( );
+
+    // find the block holding the new file and check the rest of it; block
+    // 0 is the superblock, every other one may hold data
+    IoStats stats = new IoStats( );
+    SysLib.stats( stats );
+    byte block[] = new byte[Disk.blockSize];
+    int found = -1;
+    boolean zeroed = true;
+    for ( int b = 1; b < stats.diskBlocks && found == -1; b++ ) {
+      SysLib.rawread( b, block );
+      if ( !Arrays.equals( Arrays.copyOf( block, NEW_BYTES ), data ) )
+        continue;
+      found = b;
+      for ( int i = NEW_BYTES; i < block.length; i++ )
+        zeroed &= block[i] == 0;
+    }
+    if ( found == -1 )
+      SysLib.cout( "Test11: the new file is not on disk (wrong)\n" );
+    else if ( zeroed )
+      SysLib.cout( "Test11: Correct behavior of a reused block\n" );
+    else
+      SysLib.cout( "Test11: block " + found
+                   + " keeps bytes of a deleted file (wrong)\n" );
+    SysLib.cout( "Test completed\n" );
+    SysLib.exit( );
+  }
+}
@@ -0,0 +1,44 @@
+// Disk scheduling benchmark: several writers stream 13-block runs into
+// distant regions of the disk at the same time, the way concurrent
+// Test5-style writes of "bothell" would.  The simulated disk time and the
+// commands it took are reported, which unlike the elapsed time are free of
+// thread scheduling noise.  Run it once per
+// -DthreadOS.disk.scheduler=fcfs|sstf|scan|clook to compare.
+// The raw writes clobber file data, so the disk is formatted afterwards.
+public class Test8 extends Thread {
+  final static int DEFAULTWRITERS = 4;
+  int writers;
+
+  public Test8( String args[] ) {
+    writers = Integer.parseInt( args[0] );
+  }
+
+  public Test8( ) {
+    writers = DEFAULTWRITERS;
+  }
+
+  public void run( ) {
+    SysLib.cout( "Test8: " + writers + " concurrent writers\n" );
+    IoStats before = new IoStats( );
+    SysLib.stats( before );
+    long start = System.currentTimeMillis( );
+    for ( int i = 0; i < writers; i++ ) {
+      String[] cmd = new String[3];
+      cmd[0] = "Test8a";
+      cmd[1] = String.format( "%d", i );
+      cmd[2] = String.format( "%d", writers );
+      SysLib.exec( cmd );
+    }
+    for ( int i = 0; i < writers; i++ )
+      SysLib.join( );
+    long elapsed = System.currentTimeMillis( ) - start;
+    IoStats after = new IoStats( );
+    SysLib.stats( after );
+    SysLib.cout( "Test8: elapsed " + elapsed + " ms, simulated disk time "
+                 + ( after.seekTime - before.seekTime ) + " ms, disk commands "
+                 + ( after.diskCommands - before.diskCommands ) + "\n" );
+    SysLib.format( 64 );
+    SysLib.cout( "Test completed\n" );
+    SysLib.exit( );
+  }
+}
@@ -0,0 +1,32 @@
+// One Test8 writer: rounds of 13 sequential blocks, each round in a region
+// of its own, so writers keep pulling the head across the disk.
+public class Test8a extends Thread {
+  final static int ROUNDS = 4;
+  final static int RUN = 13;
+  final static int FIRST_BLOCK = 10;  // leave the superblock and inodes alone
+  int id;
+  int writers;
+
+  public Test8a( String args[] ) {
+    id = Integer.parseInt( args[0] );
+    writers = Integer.parseInt( args[1] );
+  }
+
+  public void run( ) {
+    byte[] block = new byte[512];
+    IoStats stats = new IoStats( );
+    SysLib.stats( stats );
+    int regions = writers * ROUNDS;
+    int regionSize = ( stats.diskBlocks - FIRST_BLOCK ) / regions;
+    for ( int round = 0; round < ROUNDS; round++ ) {
+      // interleave the regions of all writers across the disk
+      int region = ( round * writers + id * 7 ) % regions;
+      int base = FIRST_BLOCK + region * regionSize;
+      for ( int i = 0; i < RUN && i < regionSize; i++ ) {
+        block[0] = ( byte )id;
+        SysLib.rawwrite( base + i, block );
+      }
+    }
+    SysLib.exit( );
+  }
+}
@@ -0,0 +1,72 @@
+// Cache concurrency test: several threads cwrite and cread a shared range
+// of blocks larger than the cache at the same time, so misses, evictions
+// and write-backs overlap, and every block read must still hold exactly
+// the bytes last written to it.  The elapsed time and the cache hit rate
+// are reported.  A multi-block cread then mixes a cached block with enough
+// missing ones to evict it, and must still return every block.  The
+// cwrites clobber file data, so the disk is formatted afterwards.
+public class Test9 extends Thread {
+  final static int DEFAULTTHREADS = 4;
+  int threads;
+
+  public Test9( String args[] ) {
+    threads = Integer.parseInt( args[0] );
+  }
+
+  public Test9( ) {
+    threads = DEFAULTTHREADS;
+  }
+
+  public void run( ) {
+    SysLib.cout( "Test9: " + threads + " concurrent cache users\n" );
+    IoStats before = new IoStats( );
+    SysLib.stats( before );
+    long start = System.currentTimeMillis( );
+    Test9a.stamped = new java.util.concurrent.CountDownLatch( threads );
+    for ( int i = 0; i < threads; i++ ) {
+      String[] cmd = new String[3];
+      cmd[0] = "Test9a";
+      cmd[1] = String.format( "%d", i );
+      cmd[2] = String.format( "%d", threads );
+      SysLib.exec( cmd );
+    }
+    for ( int i = 0; i < threads; i++ )
+      SysLib.join( );
+    long elapsed = System.currentTimeMillis( ) - start;
+    IoStats after = new IoStats( );
+    SysLib.stats( after );
+    long hits = after.cacheHits - before.cacheHits;
+    long misses = after.cacheMisses - before.cacheMisses;
+    SysLib.cout( "Test9: elapsed " + elapsed + " ms, cache hits " + hits
+                 + ", misses " + misses + "\n" );
+    SysLib.cout( vectorRead( after.cacheBlocks )
+                 ? "Test9: Correct behavior of a multi-block cread\n"
+                 : "Test9: wrong data from a multi-block cread\n" );
+    SysLib.format( 64 );
+    SysLib.cout( "Test completed\n" );
+    SysLib.exit( );
+  }
+
+  // Fills the cache with the first cacheBlocks stamped blocks, then reads
+  // the first of them along with cacheBlocks - 1 blocks not cached in one
+  // cread, so that loading the misses may evict the hit.
+  private static boolean vectorRead( int cacheBlocks ) {
+    int n = Math.min( cacheBlocks, Test9a.BLOCKS / 2 );
+    byte block[] = new byte[512];
+    SysLib.flush( );
+    for ( int i = 0; i < n; i++ )
+      SysLib.cread( Test9a.FIRST_BLOCK + i, block );
+    int blocks[] = new int[n];
+    byte buffers[][] = new byte[n][512];
+    blocks[0] = Test9a.FIRST_BLOCK;
+    for ( int i = 1; i < n; i++ )
+      blocks[i] = Test9a.FIRST_BLOCK + n + i - 1;
+    if ( SysLib.cread( blocks, buffers, new int[n] ) != 0 )
+      return false;
+    for ( int i = 0; i < n; i++ )
+      for ( int j = 0; j < 512; j++ )
+        if ( buffers[i][j] != Test9a.stamp( blocks[i], j ) )
+          return false;
+    return true;
+  }
+}
@@ -0,0 +1,55 @@
+// One Test9 thread: stamps the blocks it owns, interleaved with those of
+// the other threads, waits until every thread has stamped its own, then
+// reads the whole range back at random and checks every block against its
+// owner's stamp.
+public class Test9a extends Thread {
+  final static int FIRST_BLOCK = 100; // leave the superblock and inodes alone
+  final static int BLOCKS = 120;
+  final static int READS = 150;
+  // counted down by each thread once its blocks are stamped, set by Test9
+  static java.util.concurrent.CountDownLatch stamped;
+  int id;
+  int threads;
+
+  public Test9a( String args[] ) {
+    id = Integer.parseInt( args[0] );
+    threads = Integer.parseInt( args[1] );
+  }
+
+  // byte i of block b, the same for every thread
+  static byte stamp( int b, int i ) {
+    return ( byte )( b * 31 + i );
+  }
+
+  public void run( ) {
+    byte[] block = new byte[512];
+    for ( int b = FIRST_BLOCK + id; b < FIRST_BLOCK + BLOCKS; b += threads ) {
+      for ( int i = 0; i < block.length; i++ )
+        block[i] = stamp( b, i );
+      SysLib.cwrite( b, block );
+    }
+    stamped.countDown( );
+    try {
+      stamped.await( );
+    } catch ( InterruptedException e ) {
+      SysLib.cerr( e.toString( ) + "\n" );
+    }
+    java.util.Random random = new java.util.Random( id );
+    int wrong = 0;
+    for ( int n = 0; n < READS; n++ ) {
+      int b = FIRST_BLOCK + random.nextInt( BLOCKS );
+      SysLib.cread( b, block );
+      for ( int i = 0; i < block.length; i++ ) {
+        if ( block[i] != stamp( b, i ) ) {
+          wrong++;
+          break;
+        }
+      }
+    }
+    if ( wrong == 0 )
+      SysLib.cout( "Test9a " + id + ": Correct behavior\n" );
+    else
+      SysLib.cout( "Test9a " + id + ": " + wrong + " wrong blocks\n" );
+    SysLib.exit( );
+  }
+}
@@ -0,0 +1,124 @@
+import java.io.*;
+
+// Plays back a trace recorded with -DthreadOS.trace=file against the disk
+// and cache this ThreadOS was booted with, then reports the throughput,
+// the cache hit rate and the simulated disk seek time of the replay.
+// Records are replayed one at a time in trace order, so runs are
+// deterministic; a prefetch hint is replayed block by block.  "timed"
+// spaces them out as they were recorded instead of issuing them as fast
+// as possible.  Boot on a scratch DISK with the cache and disk options
+// to compare: the replayed writes clobber it.
+//   l TraceReplay trace.bin [timed]
+public class TraceReplay extends Thread {
+  String fileName;
+  boolean timed;
+
+  public TraceReplay( String args[] ) {
+    fileName = args[0];
+    timed = args.length > 1 && args[1].equals( "timed" );
+  }
+
+  public void run( ) {
+    DataInputStream in;
+    try {
+      in = new DataInputStream( new BufferedInputStream(
+        new FileInputStream( fileName ) ) );
+      int magic = in.readInt( );
+      int version = in.readInt( );
+      // a version 1 trace only lacks the prefetch hints
+      if ( magic != DiskTrace.MAGIC || version < 1
+           || version > DiskTrace.VERSION ) {
+        SysLib.cerr( "TraceReplay: " + fileName + " is not a trace\n" );
+        in.close( );
+        SysLib.exit( );
+        return;
+      }
+    } catch ( IOException e ) {
+      SysLib.cerr( "TraceReplay: " + e + "\n" );
+      SysLib.exit( );
+      return;
+    }
+
+    IoStats before = new IoStats( );
+    SysLib.stats( before );
+    byte buffer[] = new byte[Disk.blockSize];
+    long ops = 0, blocks = 0, failed = 0;
+    long start = System.nanoTime( );
+    try {
+      while ( true ) {
+        long time;
+        try {
+          time = in.readLong( );
+        } catch ( EOFException e ) {
+          break;
+        }
+        in.readInt( ); // the thread id, not replayed
+        int block = in.readInt( );
+        int cmd = in.readByte( );
+        if ( timed ) {
+          long ahead = ( time - ( System.nanoTime( ) - start ) ) / 1000000;
+          if ( ahead > 0 )
+            SysLib.sleep( ( int )ahead );
+        }
+        if ( replay( cmd, block, buffer ) != Kernel.OK )
+          failed++;
+        if ( block >= 0 && cmd != Kernel.CPREFETCH )
+          blocks++;
+        ops++;
+      }
+      in.close( );
+    } catch ( IOException e ) {
+      SysLib.cerr( "TraceReplay: " + e + "\n" );
+    }
+    long elapsed = Math.max( 1, ( System.nanoTime( ) - start ) / 1000000 );
+    IoStats after = new IoStats( );
+    SysLib.stats( after );
+
+    long hits = after.cacheHits - before.cacheHits;
+    long misses = after.cacheMisses - before.cacheMisses;
+    SysLib.cout( "TraceReplay: " + ops + " ops (" + failed + " failed) in "
+                 + elapsed + " ms, " + ops * 1000 / elapsed + " ops/s, "
+                 + blocks * Disk.blockSize / elapsed + " KB/s\n" );
+    SysLib.cout( "TraceReplay: " + after.cachePolicy + " cache hits " + hits
+                 + ", misses " + misses + ", hit rate "
+                 + ( hits + misses > 0 ? hits * 100 / ( hits + misses ) : 0 )
+                 + "%\n" );
+    SysLib.cout( "TraceReplay: dirty evictions "
+                 + ( after.dirtyEvictions - before.dirtyEvictions ) + " ("
+                 + ( after.writeBackWait - before.writeBackWait )
+                 + " ms waiting), flushed in background "
+                 + ( after.flushed - before.flushed ) + "\n" );
+    SysLib.cout( "TraceReplay: disk commands "
+                 + ( after.diskCommands - before.diskCommands )
+                 + ", blocks read " + ( after.blocksRead - before.blocksRead )
+                 + ", written "
+                 + ( after.blocksWritten - before.blocksWritten )
+                 + ", seek time " + ( after.seekTime - before.seekTime )
+                 + " ms\n" );
+    SysLib.exit( );
+  }
+
+  private int replay( int cmd, int block, byte buffer[] ) {
+    switch ( cmd ) {
+    case Kernel.RAWREAD:
+      return SysLib.rawread( block, buffer );
+    case Kernel.RAWWRITE:
+      return SysLib.rawwrite( block, buffer );
+    case Kernel.CREAD:
+      return SysLib.cread( block, buffer );
+    case Kernel.CWRITE:
+      return SysLib.cwrite( block, buffer );
+    case Kernel.SYNC:
+      return SysLib.sync( );
+    case Kernel.CSYNC:
+      return SysLib.csync( );
+    case Kernel.CFLUSH:
+      return SysLib.flush( );
+    case Kernel.CPREFETCH:
+      // a hint the cache may not take, which is not a failure
+      SysLib.prefetch( new int[] { block } );
+      return Kernel.OK;
+    }
+    return Kernel.ERROR;
+  }
+}